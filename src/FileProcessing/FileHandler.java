@@ -24,23 +24,52 @@
 
 package FileProcessing;
 
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.RenderedImage;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
 
 /**
  * @author Aleksandr Šmailov
  */
 public class FileHandler {
+    // Compression level of png images written from pixels.
+    private static volatile int pngLevel = new PngWriter().getLevel();
     
     /**
-     * Writes image to a file.
+     * Writes image to a file. Png images stored as ARGB ints are written by
+     * {@link PngWriter}, QOI images by {@link QoiWriter}.
      * @param i image to write to a file.
      * @param s format name.
      * @param f output file.
      */
     public static void writeBufferedImage(RenderedImage i, String s, File f){
+        writeBufferedImage(i, s, f, Collections.<String, String>emptyMap());
+    }
+    
+    /**
+     * Writes image to a file with ImageIO.
+     * @param i image to write to a file.
+     * @param s format name.
+     * @param f output file.
+     */
+    private static void writeImageIO(RenderedImage i, String s, File f){
         try {
             ImageIO.write(i, s, f);
         } catch (IOException e) {
@@ -48,4 +77,247 @@ public class FileHandler {
         }
     }
     
+    /**
+     * Writes image to a file together with text entries. Text is stored in
+     * tEXt chunks, so it's only written for png format, other formats are
+     * written without it. QOI images are written by {@link QoiWriter}.
+     * @param i image to write to a file.
+     * @param s format name.
+     * @param f output file.
+     * @param text keywords and their values.
+     */
+    public static void writeBufferedImage(RenderedImage i, String s, File f,
+                                          Map<String, String> text){
+        if(QoiWriter.EXTENSION.equalsIgnoreCase(s)){
+            writeQoi(toBufferedImage(i), f);
+            return;
+        }
+        if(!"png".equalsIgnoreCase(s)){
+            writeImageIO(i, s, f);
+            return;
+        }
+        if(i instanceof BufferedImage && isIntARGB((BufferedImage)i)){
+            WritableRaster raster = ((BufferedImage)i).getRaster();
+            writePixels(((DataBufferInt)raster.getDataBuffer()).getData(), 
+                        offsetOf(raster), strideOf(raster), 
+                        raster.getWidth(), raster.getHeight(), f, text);
+            return;
+        }
+        if(text.isEmpty()){
+            writeImageIO(i, s, f);
+            return;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(s);
+        if(!writers.hasNext()){
+            writeImageIO(i, s, f);
+            return;
+        }
+        ImageWriter writer = writers.next();
+        try {
+            ImageTypeSpecifier type = 
+                    ImageTypeSpecifier.createFromRenderedImage(i);
+            IIOMetadata metadata = writer.getDefaultImageMetadata(type, null);
+            IIOMetadataNode entries = new IIOMetadataNode("tEXt");
+            for(Map.Entry<String, String> entry : text.entrySet()){
+                IIOMetadataNode node = new IIOMetadataNode("tEXtEntry");
+                node.setAttribute("keyword", entry.getKey());
+                node.setAttribute("value", entry.getValue());
+                entries.appendChild(node);
+            }
+            String format = "javax_imageio_png_1.0";
+            IIOMetadataNode root = new IIOMetadataNode(format);
+            root.appendChild(entries);
+            metadata.mergeTree(format, root);
+            // Delete old file, so nothing is left from it after the end.
+            if(f.exists() && !f.delete()){
+                throw new IOException("Can't overwrite " + f);
+            }
+            ImageOutputStream out = ImageIO.createImageOutputStream(f);
+            try {
+                writer.setOutput(out);
+                writer.write(new IIOImage(i, null, metadata));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            writer.dispose();
+        }
+    }
+    
+    /**
+     * Returns image itself when it's a buffered image, otherwise draws it 
+     * into a new ARGB image.
+     * @param i image.
+     * @return buffered image.
+     */
+    private static BufferedImage toBufferedImage(RenderedImage i){
+        if(i instanceof BufferedImage){
+            return (BufferedImage)i;
+        }
+        BufferedImage copy = new BufferedImage(i.getWidth(), i.getHeight(),
+                                               BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = copy.createGraphics();
+        try {
+            // Pixels are copied, not blended over the empty image.
+            g.setComposite(AlphaComposite.Src);
+            // Rendered image may not start at (0, 0).
+            g.drawRenderedImage(i, AffineTransform.getTranslateInstance(
+                    -i.getMinX(), -i.getMinY()));
+        } finally {
+            g.dispose();
+        }
+        return copy;
+    }
+    
+    /**
+     * Writes QOI image, text can't be stored in it.
+     * @param i image to write.
+     * @param f output file.
+     */
+    private static void writeQoi(BufferedImage i, File f){
+        try {
+            if(isIntARGB(i)){
+                WritableRaster raster = i.getRaster();
+                QoiWriter.write(((DataBufferInt)raster.getDataBuffer())
+                                .getData(), offsetOf(raster), 
+                                strideOf(raster), raster.getWidth(), 
+                                raster.getHeight(), f);
+            } else {
+                int w = i.getWidth();
+                int h = i.getHeight();
+                int[] pixels = i.getRGB(0, 0, w, h, null, 0, w);
+                QoiWriter.write(pixels, 0, w, w, h, f);
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    /**
+     * Writes png image straight from pixels.
+     * @param pixels array of ARGB pixels.
+     * @param offset index of the upper left pixel.
+     * @param stride distance between rows in the array.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param f output file.
+     * @param text keywords and values of tEXt entries.
+     */
+    public static void writePixels(int[] pixels, int offset, int stride, 
+                                   int width, int height, File f, 
+                                   Map<String, String> text){
+        PngWriter writer = new PngWriter();
+        writer.setLevel(pngLevel);
+        try {
+            writer.write(pixels, offset, stride, width, height, f, text);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    /**
+     * Sets compression level of png images written from pixels.
+     * @param level level from {@link PngWriter#STORE} to 9.
+     * @throws IllegalArgumentException when level is out of range.
+     */
+    public static void setPngLevel(int level){
+        // Validates the level.
+        new PngWriter().setLevel(level);
+        pngLevel = level;
+    }
+    
+    /**
+     * @return compression level of png images written from pixels.
+     */
+    public static int getPngLevel(){
+        return pngLevel;
+    }
+    
+    /**
+     * Writes image to a raw image file, see {@link RawImageFile}. Pixels 
+     * are copied straight into the mapped file.
+     * @param i image to write, padded square image when it's bigger than 
+     * the width and height.
+     * @param width width of the image before padding.
+     * @param height height of the image before padding.
+     * @param mode mode the image was encrypted in or 
+     * {@link RawImageFile#NO_MODE}.
+     * @param f output file.
+     * @throws IllegalArgumentException when image is smaller than the size
+     * or padded image isn't square.
+     */
+    public static void writeRaw(BufferedImage i, int width, int height, 
+                                int mode, File f){
+        int w = i.getWidth();
+        int h = i.getHeight();
+        int paddedLength = 0;
+        if(width != w || height != h){
+            if(w != h || width > w || height > h){
+                String err = "Image must be the padded square image!";
+                throw new IllegalArgumentException(err);
+            }
+            paddedLength = w;
+        }
+        try {
+            RawImageFile raw = RawImageFile.create(f, width, height, 
+                                                   paddedLength, mode);
+            try {
+                MappedPixelFile pixels = raw.getPixels();
+                if(isIntARGB(i)){
+                    WritableRaster raster = i.getRaster();
+                    int[] data = ((DataBufferInt)raster.getDataBuffer())
+                                 .getData();
+                    int offset = offsetOf(raster);
+                    int stride = strideOf(raster);
+                    for(int y = 0; y < h; y++){
+                        pixels.put((long)y * w, data, offset + y * stride, w);
+                    }
+                } else {
+                    int[] row = new int[w];
+                    for(int y = 0; y < h; y++){
+                        i.getRGB(0, y, w, 1, row, 0, w);
+                        pixels.put((long)y * w, row, 0, w);
+                    }
+                }
+            } finally {
+                raw.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    /**
+     * Checks if image keeps its pixels as ARGB ints in one array.
+     * @param i image.
+     * @return true if pixels can be taken straight from the data buffer.
+     */
+    private static boolean isIntARGB(BufferedImage i){
+        WritableRaster raster = i.getRaster();
+        return i.getType() == BufferedImage.TYPE_INT_ARGB &&
+               raster.getDataBuffer() instanceof DataBufferInt &&
+               raster.getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+    
+    /**
+     * @param raster raster of TYPE_INT_ARGB image.
+     * @return distance between rows in the data buffer.
+     */
+    private static int strideOf(WritableRaster raster){
+        return ((SinglePixelPackedSampleModel)raster.getSampleModel())
+               .getScanlineStride();
+    }
+    
+    /**
+     * @param raster raster of TYPE_INT_ARGB image.
+     * @return index of the upper left pixel in the data buffer.
+     */
+    private static int offsetOf(WritableRaster raster){
+        // Raster of subimage is translated from its data buffer.
+        return raster.getDataBuffer().getOffset() - 
+               raster.getSampleModelTranslateY() * strideOf(raster) - 
+               raster.getSampleModelTranslateX();
+    }
 }
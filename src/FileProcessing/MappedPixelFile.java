@@ -0,0 +1,246 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package FileProcessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pixels of an image kept in a memory mapped file instead of the heap. File
+ * holds ARGB values row by row in little-endian byte order, possibly after
+ * a header, and is mapped in chunks, so images may be bigger than 2 GB.
+ * @author Aleksandr Šmailov
+ */
+public class MappedPixelFile {
+    // Number of pixels in one mapped chunk, must be power of 2.
+    private static final int CHUNK_SHIFT = 26;
+    private static final int CHUNK_PIXELS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_PIXELS - 1;
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final IntBuffer[] chunks;
+    private final int width;
+    private final int height;
+    // Temporary file which is deleted when it's closed, null for others.
+    private File temp;
+    
+    /**
+     * Maps pixels which start at the offset of the file, file must be long 
+     * enough when it's mapped read only.
+     * @param file opened file.
+     * @param offset offset of the first pixel in bytes.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param writable true to map the file for reading and writing.
+     * @throws IOException when file can't be mapped.
+     */
+    private MappedPixelFile(RandomAccessFile file, long offset, int width, 
+                            int height, boolean writable) 
+            throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.width = width;
+        this.height = height;
+        long size = (long)width * height;
+        if(writable){
+            // Map would grow the file anyway, this also truncates it.
+            file.setLength(offset + size * Integer.BYTES);
+        } else if(file.length() < offset + size * Integer.BYTES){
+            throw new IOException("File is too short for the image");
+        }
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE :
+                                              FileChannel.MapMode.READ_ONLY;
+        int count = (int)((size + CHUNK_PIXELS - 1) >> CHUNK_SHIFT);
+        chunks = new IntBuffer[count];
+        for(int i = 0; i < count; i++){
+            long start = (long)i << CHUNK_SHIFT;
+            long pixels = Math.min(CHUNK_PIXELS, size - start);
+            chunks[i] = channel.map(mode, offset + start * Integer.BYTES, 
+                                    pixels * Integer.BYTES)
+                               .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+    }
+    
+    /**
+     * Maps pixels which start at the offset of the already opened file. 
+     * Mapped file owns the file and closes it.
+     * @param file opened file.
+     * @param offset offset of the first pixel in bytes.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param writable true to map the file for reading and writing, file 
+     * is resized to fit the image then.
+     * @return mapped file.
+     * @throws IOException when file can't be mapped.
+     */
+    static MappedPixelFile map(RandomAccessFile file, long offset, int width,
+                               int height, boolean writable) 
+            throws IOException {
+        if(width <= 0 || height <= 0){
+            String err = "Image width and height must be positive!";
+            throw new IllegalArgumentException(err);
+        }
+        return new MappedPixelFile(file, offset, width, height, writable);
+    }
+    
+    /**
+     * Creates (or overwrites) file big enough for the image and maps it.
+     * @param f file.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @return mapped file.
+     * @throws IOException when file can't be created or mapped.
+     */
+    public static MappedPixelFile create(File f, int width, int height) 
+            throws IOException {
+        if(width <= 0 || height <= 0){
+            String err = "Image width and height must be positive!";
+            throw new IllegalArgumentException(err);
+        }
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        try{
+            return new MappedPixelFile(file, 0, width, height, true);
+        } catch (IOException e){
+            file.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Creates temporary file for the image which is deleted when it's 
+     * closed, or on exit when it can't be deleted while it's mapped.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @return mapped file.
+     * @throws IOException when file can't be created or mapped.
+     */
+    public static MappedPixelFile createTemp(int width, int height) 
+            throws IOException {
+        File f = File.createTempFile("fractal", ".pixels");
+        f.deleteOnExit();
+        MappedPixelFile mapped;
+        try {
+            mapped = create(f, width, height);
+        } catch (IOException | RuntimeException e){
+            f.delete();
+            throw e;
+        }
+        mapped.temp = f;
+        return mapped;
+    }
+    
+    /**
+     * @param index index of the pixel (y * width + x).
+     * @return ARGB value of the pixel.
+     */
+    public int get(long index){
+        return chunks[(int)(index >> CHUNK_SHIFT)].get((int)(index & CHUNK_MASK));
+    }
+    
+    /**
+     * @param index index of the pixel (y * width + x).
+     * @param argb ARGB value of the pixel.
+     */
+    public void put(long index, int argb){
+        chunks[(int)(index >> CHUNK_SHIFT)].put((int)(index & CHUNK_MASK), argb);
+    }
+    
+    /**
+     * Copies pixels from the file to the array.
+     * @param index index of the first pixel.
+     * @param dst destination array.
+     * @param offset offset in the destination array.
+     * @param length number of pixels.
+     */
+    public void get(long index, int[] dst, int offset, int length){
+        while(length > 0){
+            IntBuffer chunk = chunks[(int)(index >> CHUNK_SHIFT)].duplicate();
+            int position = (int)(index & CHUNK_MASK);
+            int count = Math.min(length, chunk.limit() - position);
+            chunk.position(position);
+            chunk.get(dst, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+    
+    /**
+     * Copies pixels from the array to the file.
+     * @param index index of the first pixel.
+     * @param src source array.
+     * @param offset offset in the source array.
+     * @param length number of pixels.
+     */
+    public void put(long index, int[] src, int offset, int length){
+        while(length > 0){
+            IntBuffer chunk = chunks[(int)(index >> CHUNK_SHIFT)].duplicate();
+            int position = (int)(index & CHUNK_MASK);
+            int count = Math.min(length, chunk.limit() - position);
+            chunk.position(position);
+            chunk.put(src, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+    
+    /**
+     * Closes the file, temporary file is deleted as well. Mapped memory is 
+     * released once mapped file is garbage collected.
+     */
+    public void close(){
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        // Some systems don't delete files which are still mapped, those are
+        // left to be deleted on exit.
+        if(temp != null){
+            temp.delete();
+        }
+    }
+
+    /**
+     * @return width of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the image.
+     */
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package FileProcessing;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streaming png decoder, scanlines are inflated and unfiltered one by one 
+ * and written straight to the destination as ARGB pixels, so decoded image
+ * is never kept whole. Only 8 bit, non interlaced truecolor, truecolor with
+ * alpha and palette images are decoded, they are exactly what ImageIO 
+ * gives, other images are left to ImageIO.
+ * @author Aleksandr Šmailov
+ */
+public class PngReader {
+    private static final byte[] SIGNATURE = {
+        (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+    };
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+    
+    private final DataInputStream in;
+    private final int width;
+    private final int height;
+    private final int colorType;
+    // Bytes per pixel.
+    private final int bpp;
+    private final int[] palette;
+    // Data left in the current IDAT chunk.
+    private int remaining;
+    private boolean read;
+    
+    /**
+     * Destination of decoded rows.
+     */
+    private interface RowTarget {
+        /**
+         * @param y row.
+         * @param row ARGB pixels of the row.
+         */
+        void put(int y, int[] row);
+    }
+
+    private PngReader(DataInputStream in, int width, int height, 
+                      int colorType, int[] palette, int remaining) {
+        this.in = in;
+        this.width = width;
+        this.height = height;
+        this.colorType = colorType;
+        this.bpp = colorType == 6 ? 4 : colorType == 2 ? 3 : 1;
+        this.palette = palette;
+        this.remaining = remaining;
+    }
+    
+    /**
+     * Opens png image and reads chunks up to its image data.
+     * @param f file.
+     * @return reader or null when file isn't a png image which can be 
+     * decoded by this reader.
+     * @throws IOException when file can't be read or is damaged.
+     */
+    public static PngReader open(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(f), 1 << 16));
+        PngReader reader = null;
+        try {
+            reader = readHeader(in);
+            return reader;
+        } finally {
+            if(reader == null){
+                in.close();
+            }
+        }
+    }
+    
+    /**
+     * Reads chunks which come before image data.
+     * @param in input stream.
+     * @return reader or null when image isn't supported.
+     * @throws IOException when file can't be read or is damaged.
+     */
+    private static PngReader readHeader(DataInputStream in) 
+            throws IOException {
+        byte[] signature = new byte[SIGNATURE.length];
+        try {
+            in.readFully(signature);
+        } catch (EOFException e) {
+            return null;
+        }
+        if(!Arrays.equals(signature, SIGNATURE) || 
+           in.readInt() != 13 || in.readInt() != IHDR){
+            return null;
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        int depth = in.readUnsignedByte();
+        int colorType = in.readUnsignedByte();
+        int compression = in.readUnsignedByte();
+        int filter = in.readUnsignedByte();
+        int interlace = in.readUnsignedByte();
+        in.readInt();
+        if(depth != 8 || compression != 0 || filter != 0 || interlace != 0 ||
+           (colorType != 2 && colorType != 3 && colorType != 6) ||
+           width <= 0 || height <= 0 || 
+           (long)width * height > Integer.MAX_VALUE){
+            return null;
+        }
+        int[] palette = null;
+        boolean transparency = false;
+        while(true){
+            int length = in.readInt();
+            int type = in.readInt();
+            if(length < 0){
+                throw new IOException("Damaged png image");
+            }
+            if(type == IDAT){
+                if(colorType == 3 && palette == null){
+                    throw new IOException("Png image has no palette");
+                }
+                // ImageIO may add alpha to truecolor images, leave it.
+                if(transparency && colorType != 3){
+                    return null;
+                }
+                return new PngReader(in, width, height, colorType, palette,
+                                     length);
+            }
+            if(type == PLTE && colorType == 3){
+                palette = new int[256];
+                Arrays.fill(palette, 0xFF000000);
+                for(int i = 0; i < length / 3; i++){
+                    palette[i] = 0xFF000000 | in.readUnsignedByte() << 16 |
+                                 in.readUnsignedByte() << 8 | 
+                                 in.readUnsignedByte();
+                }
+                skipFully(in, length % 3);
+            } else if(type == TRNS && colorType == 3 && palette != null){
+                for(int i = 0; i < length; i++){
+                    int alpha = in.readUnsignedByte();
+                    if(i < palette.length){
+                        palette[i] = alpha << 24 | 
+                                     (palette[i] & 0x00FFFFFF);
+                    }
+                }
+            } else {
+                transparency |= type == TRNS;
+                skipFully(in, length);
+            }
+            // Crc.
+            in.readInt();
+        }
+    }
+    
+    /**
+     * Skips bytes.
+     * @param in input stream.
+     * @param count number of bytes.
+     * @throws IOException when stream ends earlier.
+     */
+    private static void skipFully(DataInputStream in, long count) 
+            throws IOException {
+        while(count > 0){
+            int skipped = in.skipBytes((int)Math.min(count, 1 << 30));
+            if(skipped <= 0){
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+    
+    /**
+     * Decodes image into an array.
+     * @param dst destination array.
+     * @param offset index of the upper left pixel.
+     * @param stride distance between rows in the array.
+     * @throws IOException when file can't be read or is damaged.
+     */
+    public void read(final int[] dst, final int offset, final int stride) 
+            throws IOException {
+        if(stride < width || offset < 0 ||
+           offset + (long)(height - 1) * stride + width > dst.length){
+            String err = "Image doesn't fit in the array of pixels!";
+            throw new IllegalArgumentException(err);
+        }
+        read(new RowTarget() {
+            @Override
+            public void put(int y, int[] row) {
+                System.arraycopy(row, 0, dst, offset + y * stride, width);
+            }
+        });
+    }
+    
+    /**
+     * Decodes image into a memory mapped file.
+     * @param dst destination file.
+     * @param offset index of the upper left pixel.
+     * @param stride distance between rows in the file.
+     * @throws IOException when file can't be read or is damaged.
+     */
+    public void read(final MappedPixelFile dst, final long offset, 
+                     final long stride) throws IOException {
+        if(stride < width || offset < 0 || offset + (height - 1) * stride + 
+           width > (long)dst.getWidth() * dst.getHeight()){
+            String err = "Image doesn't fit in the file!";
+            throw new IllegalArgumentException(err);
+        }
+        read(new RowTarget() {
+            @Override
+            public void put(int y, int[] row) {
+                dst.put(offset + y * stride, row, 0, width);
+            }
+        });
+    }
+    
+    /**
+     * Inflates, unfilters and converts rows one by one, image may be read
+     * only once.
+     * @param target destination of rows.
+     * @throws IOException when file can't be read or is damaged.
+     */
+    private void read(RowTarget target) throws IOException {
+        if(read){
+            throw new IllegalStateException("Image is read already!");
+        }
+        read = true;
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream data = new DataInputStream(
+                    new InflaterInputStream(new IdatStream(), inflater, 
+                                            1 << 16));
+            int rowBytes = width * bpp;
+            byte[] previous = new byte[rowBytes];
+            byte[] current = new byte[rowBytes];
+            int[] row = new int[width];
+            for(int y = 0; y < height; y++){
+                int filter = data.readUnsignedByte();
+                data.readFully(current);
+                unfilter(filter, current, previous);
+                convert(current, row);
+                target.put(y, row);
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    /**
+     * Restores row's samples from filtered ones.
+     * @param filter filter type.
+     * @param row filtered row, samples are restored in place.
+     * @param previous samples of the row above.
+     * @throws IOException when filter type is unknown.
+     */
+    private void unfilter(int filter, byte[] row, byte[] previous) 
+            throws IOException {
+        int n = row.length;
+        switch(filter){
+            case 0:
+                break;
+            case 1:
+                for(int i = bpp; i < n; i++){
+                    row[i] += row[i - bpp];
+                }
+                break;
+            case 2:
+                for(int i = 0; i < n; i++){
+                    row[i] += previous[i];
+                }
+                break;
+            case 3:
+                for(int i = 0; i < bpp; i++){
+                    row[i] += (previous[i] & 0xFF) >>> 1;
+                }
+                for(int i = bpp; i < n; i++){
+                    row[i] += ((row[i - bpp] & 0xFF) + 
+                               (previous[i] & 0xFF)) >>> 1;
+                }
+                break;
+            case 4:
+                for(int i = 0; i < bpp; i++){
+                    row[i] += previous[i];
+                }
+                for(int i = bpp; i < n; i++){
+                    row[i] += PngWriter.paeth(row[i - bpp] & 0xFF, 
+                                              previous[i] & 0xFF, 
+                                              previous[i - bpp] & 0xFF);
+                }
+                break;
+            default:
+                throw new IOException("Unknown png filter " + filter);
+        }
+    }
+    
+    /**
+     * Converts samples of the row to ARGB pixels.
+     * @param samples samples.
+     * @param row pixels.
+     */
+    private void convert(byte[] samples, int[] row) {
+        switch(colorType){
+            case 6:
+                for(int x = 0, i = 0; x < width; x++, i += 4){
+                    row[x] = (samples[i + 3] & 0xFF) << 24 | 
+                             (samples[i] & 0xFF) << 16 |
+                             (samples[i + 1] & 0xFF) << 8 | 
+                             (samples[i + 2] & 0xFF);
+                }
+                break;
+            case 2:
+                for(int x = 0, i = 0; x < width; x++, i += 3){
+                    row[x] = 0xFF000000 | (samples[i] & 0xFF) << 16 |
+                             (samples[i + 1] & 0xFF) << 8 | 
+                             (samples[i + 2] & 0xFF);
+                }
+                break;
+            default:
+                for(int x = 0; x < width; x++){
+                    row[x] = palette[samples[x] & 0xFF];
+                }
+        }
+    }
+    
+    /**
+     * Closes the file.
+     */
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    /**
+     * @return width of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * @return height of the image.
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Data of consecutive IDAT chunks as one stream.
+     */
+    private class IdatStream extends InputStream {
+        // Chunk after the last IDAT is reached.
+        private boolean end;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while(remaining == 0){
+                if(end){
+                    return -1;
+                }
+                // Crc of the chunk, then the next chunk.
+                in.readInt();
+                int length = in.readInt();
+                end = in.readInt() != IDAT;
+                remaining = end ? 0 : length;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            if(n < 0){
+                throw new EOFException();
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package FileProcessing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes png images straight from arrays of ARGB pixels. Image is cut into
+ * bands of rows which are filtered and deflated in parallel, every band but 
+ * the last one ends with a sync flush, so compressed bands joined together
+ * make one zlib stream. Opaque images are written without alpha channel.
+ * @author Aleksandr Šmailov
+ */
+public class PngWriter {
+    /** Level which only stores data without compression. */
+    public static final int STORE = Deflater.NO_COMPRESSION;
+    
+    private static final byte[] SIGNATURE = {
+        (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+    };
+    // Uncompressed bytes in one band, at least one row is in a band.
+    private static final int BAND_BYTES = 1 << 18;
+    // Size of deflate window, bands are primed with that much previous data.
+    private static final int WINDOW = 1 << 15;
+    private static final int ADLER_BASE = 65521;
+    
+    private int level = Deflater.BEST_SPEED;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * Writes image to a file.
+     * @param pixels array of ARGB pixels.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param f output file.
+     * @param text keywords and values of tEXt entries.
+     * @throws IOException when file can't be written.
+     */
+    public void write(int[] pixels, int width, int height, File f, 
+                      Map<String, String> text) throws IOException {
+        write(pixels, 0, width, width, height, f, text);
+    }
+    
+    /**
+     * Writes part of array to a file.
+     * @param pixels array of ARGB pixels.
+     * @param offset index of the upper left pixel.
+     * @param stride distance between rows in the array.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param f output file.
+     * @param text keywords and values of tEXt entries.
+     * @throws IOException when file can't be written.
+     */
+    public void write(int[] pixels, int offset, int stride, int width, 
+                      int height, File f, Map<String, String> text) 
+            throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f),
+                                                    1 << 16);
+        try {
+            write(pixels, offset, stride, width, height, out, text);
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Writes image to a stream, stream is not closed.
+     * @param pixels array of ARGB pixels.
+     * @param offset index of the upper left pixel.
+     * @param stride distance between rows in the array.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param stream output stream.
+     * @param text keywords and values of tEXt entries, may be null.
+     * @throws IOException when stream can't be written.
+     * @throws IllegalArgumentException when image doesn't fit in the array.
+     */
+    public void write(int[] pixels, int offset, int stride, int width, 
+                      int height, OutputStream stream, 
+                      Map<String, String> text) throws IOException {
+        if(width <= 0 || height <= 0 || stride < width || offset < 0 ||
+           offset + (long)(height - 1) * stride + width > pixels.length){
+            String err = "Image doesn't fit in the array of pixels!";
+            throw new IllegalArgumentException(err);
+        }
+        if(text == null){
+            text = Collections.emptyMap();
+        }
+        boolean alpha = hasAlpha(pixels, offset, stride, width, height);
+        Image image = new Image(pixels, offset, stride, width, height, 
+                                alpha ? 4 : 3);
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(SIGNATURE);
+        // Header: size, bit depth, color type, compression, filter and
+        // interlace methods.
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeByte(8);
+        data.writeByte(alpha ? 6 : 2);
+        data.writeByte(0);
+        data.writeByte(0);
+        data.writeByte(0);
+        writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+        for(Map.Entry<String, String> entry : text.entrySet()){
+            byte[] bytes = (entry.getKey() + '\0' + entry.getValue())
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            writeChunk(out, "tEXt", bytes, 0, bytes.length);
+        }
+        writeData(out, image);
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+        out.flush();
+    }
+    
+    /**
+     * Deflates bands in parallel and writes them in order as IDAT chunks. 
+     * Only a few bands ahead of the written one are kept in memory.
+     * @param out output stream.
+     * @param image image to write.
+     * @throws IOException when stream can't be written.
+     */
+    private void writeData(DataOutputStream out, Image image) 
+            throws IOException {
+        int bandRows = Math.max(1, BAND_BYTES / image.rowBytes);
+        int bands = (image.height + bandRows - 1) / bandRows;
+        // zlib header, window is 32K and level is a hint for decoders.
+        int flevel = level == Deflater.DEFAULT_COMPRESSION ? 2 : 
+                     level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8 | flg) % 31);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Deque<ForkJoinTask<Band>> queue = new ArrayDeque<>();
+            int next = 0;
+            long adler = 1;
+            for(int i = 0; i < bands; i++){
+                while(next < bands && queue.size() < 2 * parallelism){
+                    int from = next * bandRows;
+                    int to = Math.min(image.height, from + bandRows);
+                    queue.add(pool.submit(new BandTask(image, from, to, 
+                                                       next == bands - 1)));
+                    next++;
+                }
+                Band band = queue.poll().join();
+                adler = combineAdler(adler, band.adler, band.rawLength);
+                if(i == 0){
+                    // Header goes into the first chunk.
+                    byte[] bytes = new byte[band.length + 2];
+                    bytes[0] = (byte)cmf;
+                    bytes[1] = (byte)flg;
+                    System.arraycopy(band.data, 0, bytes, 2, band.length);
+                    band = new Band(bytes, bytes.length, band.adler, 
+                                    band.rawLength);
+                }
+                writeChunk(out, "IDAT", band.data, 0, band.length);
+            }
+            byte[] trailer = {
+                (byte)(adler >>> 24), (byte)(adler >>> 16), 
+                (byte)(adler >>> 8), (byte)adler
+            };
+            writeChunk(out, "IDAT", trailer, 0, trailer.length);
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Writes chunk with its length and crc.
+     * @param out output stream.
+     * @param type type of the chunk.
+     * @param data data of the chunk.
+     * @param offset offset of data in the array.
+     * @param length length of data.
+     * @throws IOException when stream can't be written.
+     */
+    private static void writeChunk(DataOutputStream out, String type, 
+                                   byte[] data, int offset, int length) 
+            throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, offset, length);
+        out.writeInt((int)crc.getValue());
+    }
+    
+    /**
+     * Checks if any pixel is not opaque.
+     * @return true if alpha channel has to be written.
+     */
+    private static boolean hasAlpha(int[] pixels, int offset, int stride, 
+                                    int width, int height){
+        for(int y = 0; y < height; y++){
+            int row = offset + y * stride;
+            for(int x = 0; x < width; x++){
+                if(pixels[row + x] >>> 24 != 0xFF){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Combines adler32 checksums of two consecutive parts of data, as zlib 
+     * adler32_combine does.
+     * @param adler1 checksum of the first part.
+     * @param adler2 checksum of the second part.
+     * @param length2 length of the second part.
+     * @return checksum of both parts.
+     */
+    static long combineAdler(long adler1, long adler2, long length2){
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = rem * sum1 % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + 
+                ADLER_BASE - rem;
+        if(sum1 >= ADLER_BASE){
+            sum1 -= ADLER_BASE;
+        }
+        if(sum1 >= ADLER_BASE){
+            sum1 -= ADLER_BASE;
+        }
+        if(sum2 >= 2L * ADLER_BASE){
+            sum2 -= 2L * ADLER_BASE;
+        }
+        if(sum2 >= ADLER_BASE){
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | sum2 << 16;
+    }
+    
+    /**
+     * Sets compression level.
+     * @param level level from {@link #STORE} to 
+     * {@link Deflater#BEST_COMPRESSION} or 
+     * {@link Deflater#DEFAULT_COMPRESSION}.
+     * @throws IllegalArgumentException when level is out of range.
+     */
+    public void setLevel(int level) {
+        if((level < STORE || level > Deflater.BEST_COMPRESSION) && 
+           level != Deflater.DEFAULT_COMPRESSION){
+            String err = "Compression level is out of range!";
+            throw new IllegalArgumentException(err);
+        }
+        this.level = level;
+    }
+    
+    /**
+     * @return compression level.
+     */
+    public int getLevel() {
+        return level;
+    }
+    
+    /**
+     * Sets number of threads which deflate bands.
+     * @param parallelism number of threads.
+     * @throws IllegalArgumentException when argument is negative or zero.
+     */
+    public void setParallelism(int parallelism) {
+        if(parallelism <= 0){
+            String err = "Parallelism must be positive!";
+            throw new IllegalArgumentException(err);
+        }
+        this.parallelism = parallelism;
+    }
+    
+    /**
+     * @return number of threads which deflate bands.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    /**
+     * Pixels of the image being written.
+     */
+    private static class Image {
+        final int[] pixels;
+        final int offset;
+        final int stride;
+        final int width;
+        final int height;
+        // Bytes per pixel and per filtered row with its filter type.
+        final int bpp;
+        final int rowBytes;
+
+        Image(int[] pixels, int offset, int stride, int width, int height,
+              int bpp) {
+            this.pixels = pixels;
+            this.offset = offset;
+            this.stride = stride;
+            this.width = width;
+            this.height = height;
+            this.bpp = bpp;
+            this.rowBytes = width * bpp + 1;
+        }
+        
+        /**
+         * Copies row's samples into array.
+         * @param y row, rows above the image are zeros.
+         * @param row array to fill.
+         */
+        void getRow(int y, byte[] row) {
+            if(y < 0){
+                Arrays.fill(row, (byte)0);
+                return;
+            }
+            int src = offset + y * stride;
+            for(int x = 0, i = 0; x < width; x++){
+                int argb = pixels[src + x];
+                row[i++] = (byte)(argb >>> 16);
+                row[i++] = (byte)(argb >>> 8);
+                row[i++] = (byte)argb;
+                if(bpp == 4){
+                    row[i++] = (byte)(argb >>> 24);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Deflated band.
+     */
+    private static class Band {
+        final byte[] data;
+        final int length;
+        final long adler;
+        final long rawLength;
+
+        Band(byte[] data, int length, long adler, long rawLength) {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.rawLength = rawLength;
+        }
+    }
+    
+    /**
+     * Filters and deflates rows of a band.
+     */
+    private class BandTask implements Callable<Band> {
+        private final Image image;
+        private final int from;
+        private final int to;
+        private final boolean last;
+        private byte[] previous;
+        private byte[] current;
+
+        BandTask(Image image, int from, int to, boolean last) {
+            this.image = image;
+            this.from = from;
+            this.to = to;
+            this.last = last;
+        }
+
+        @Override
+        public Band call() {
+            int rowBytes = image.rowBytes;
+            previous = new byte[rowBytes - 1];
+            current = new byte[rowBytes - 1];
+            Deflater deflater = new Deflater(level, true);
+            try {
+                // Prime the window with the end of the previous band, so 
+                // bands compress almost as well as one stream.
+                int primed = level == STORE ? 0 :
+                        Math.min(from, (WINDOW + rowBytes - 1) / rowBytes);
+                if(primed > 0){
+                    byte[] window = filterRows(from - primed, from);
+                    int length = Math.min(WINDOW, window.length);
+                    deflater.setDictionary(window, window.length - length, 
+                                           length);
+                }
+                byte[] raw = filterRows(from, to);
+                Adler32 adler = new Adler32();
+                adler.update(raw, 0, raw.length);
+                deflater.setInput(raw);
+                ByteArrayOutputStream out = 
+                        new ByteArrayOutputStream(raw.length / 2 + 64);
+                byte[] buffer = new byte[1 << 16];
+                int n;
+                if(last){
+                    deflater.finish();
+                    while(!deflater.finished()){
+                        n = deflater.deflate(buffer);
+                        out.write(buffer, 0, n);
+                    }
+                } else {
+                    // Sync flush ends band on a byte boundary without 
+                    // marking the last block.
+                    do {
+                        n = deflater.deflate(buffer, 0, buffer.length, 
+                                             Deflater.SYNC_FLUSH);
+                        out.write(buffer, 0, n);
+                    } while(n == buffer.length);
+                }
+                byte[] data = out.toByteArray();
+                return new Band(data, data.length, adler.getValue(), 
+                                raw.length);
+            } finally {
+                deflater.end();
+            }
+        }
+        
+        /**
+         * Filters rows, each row gets the filter which gives the smallest 
+         * sum of absolute differences, no filter is used when data is only
+         * stored.
+         * @param start first row.
+         * @param end row after the last one.
+         * @return filtered rows with their filter types.
+         */
+        private byte[] filterRows(int start, int end) {
+            int rowBytes = image.rowBytes;
+            int bpp = image.bpp;
+            byte[] result = new byte[(end - start) * rowBytes];
+            image.getRow(start - 1, previous);
+            for(int y = start; y < end; y++){
+                image.getRow(y, current);
+                int pos = (y - start) * rowBytes;
+                int filter = level == STORE ? 0 : 
+                             chooseFilter(current, previous, bpp);
+                result[pos++] = (byte)filter;
+                for(int i = 0; i < current.length; i++){
+                    int a = i >= bpp ? current[i - bpp] & 0xFF : 0;
+                    int b = previous[i] & 0xFF;
+                    int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                    int x = current[i] & 0xFF;
+                    result[pos + i] = (byte)(x - predict(filter, a, b, c));
+                }
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Chooses filter giving the smallest sum of filtered bytes taken as 
+     * signed values.
+     * @param row samples of the row.
+     * @param previous samples of the row above.
+     * @param bpp bytes per pixel.
+     * @return filter type.
+     */
+    private static int chooseFilter(byte[] row, byte[] previous, int bpp){
+        long none = 0, sub = 0, up = 0, average = 0, paeth = 0;
+        for(int i = 0; i < row.length; i++){
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = previous[i] & 0xFF;
+            int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+            int x = row[i] & 0xFF;
+            none += Math.abs((byte)x);
+            sub += Math.abs((byte)(x - a));
+            up += Math.abs((byte)(x - b));
+            average += Math.abs((byte)(x - ((a + b) >>> 1)));
+            paeth += Math.abs((byte)(x - paeth(a, b, c)));
+        }
+        int filter = 0;
+        long best = none;
+        if(sub < best){
+            filter = 1;
+            best = sub;
+        }
+        if(up < best){
+            filter = 2;
+            best = up;
+        }
+        if(average < best){
+            filter = 3;
+            best = average;
+        }
+        if(paeth < best){
+            filter = 4;
+        }
+        return filter;
+    }
+    
+    /**
+     * @param filter filter type.
+     * @param a sample to the left.
+     * @param b sample above.
+     * @param c sample above and to the left.
+     * @return value predicted by the filter.
+     */
+    static int predict(int filter, int a, int b, int c){
+        switch(filter){
+            case 1: return a;
+            case 2: return b;
+            case 3: return (a + b) >>> 1;
+            case 4: return paeth(a, b, c);
+            default: return 0;
+        }
+    }
+    
+    /**
+     * Paeth predictor.
+     * @param a sample to the left.
+     * @param b sample above.
+     * @param c sample above and to the left.
+     * @return the sample closest to a + b - c.
+     */
+    static int paeth(int a, int b, int c){
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if(pa <= pb && pa <= pc){
+            return a;
+        }
+        if(pb <= pc){
+            return b;
+        }
+        return c;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package FileProcessing;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads images in QOI ("Quite OK Image") format, pixels are decoded row by
+ * row straight to the destination as ARGB values.
+ * @author Aleksandr Šmailov
+ */
+public class QoiReader {
+    private static final int HEADER_BYTES = 14;
+    private static final int BUFFER = 1 << 16;
+    
+    private final InputStream in;
+    private final int width;
+    private final int height;
+    private final byte[] buffer = new byte[BUFFER];
+    private int pos;
+    private int limit;
+    private boolean read;
+    
+    /**
+     * Destination of decoded rows.
+     */
+    private interface RowTarget {
+        /**
+         * @param y row.
+         * @param row ARGB pixels of the row.
+         */
+        void put(int y, int[] row);
+    }
+
+    private QoiReader(InputStream in, int width, int height) {
+        this.in = in;
+        this.width = width;
+        this.height = height;
+    }
+    
+    /**
+     * Opens QOI image and reads its header.
+     * @param f file.
+     * @return reader or null when file isn't a QOI image.
+     * @throws IOException when file can't be read or is damaged.
+     */
+    public static QoiReader open(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        QoiReader reader = null;
+        try {
+            byte[] header = new byte[HEADER_BYTES];
+            int n = 0;
+            while(n < header.length){
+                int count = in.read(header, n, header.length - n);
+                if(count < 0){
+                    return null;
+                }
+                n += count;
+            }
+            if(getInt(header, 0) != QoiWriter.MAGIC){
+                return null;
+            }
+            int width = getInt(header, 4);
+            int height = getInt(header, 8);
+            if(width <= 0 || height <= 0 || 
+               (long)width * height > Integer.MAX_VALUE){
+                throw new IOException("Unsupported size of QOI image");
+            }
+            reader = new QoiReader(in, width, height);
+            return reader;
+        } finally {
+            if(reader == null){
+                in.close();
+            }
+        }
+    }
+    
+    /**
+     * Checks if file starts with the magic of QOI images.
+     * @param f file.
+     * @return true if file is a QOI image.
+     */
+    public static boolean isQoiImage(File f) {
+        try {
+            QoiReader reader = open(f);
+            if(reader == null){
+                return false;
+            }
+            reader.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Decodes image into an array.
+     * @param dst destination array.
+     * @param offset index of the upper left pixel.
+     * @param stride distance between rows in the array.
+     * @throws IOException when file can't be read or is damaged.
+     */
+    public void read(final int[] dst, final int offset, final int stride) 
+            throws IOException {
+        if(stride < width || offset < 0 ||
+           offset + (long)(height - 1) * stride + width > dst.length){
+            String err = "Image doesn't fit in the array of pixels!";
+            throw new IllegalArgumentException(err);
+        }
+        read(new RowTarget() {
+            @Override
+            public void put(int y, int[] row) {
+                System.arraycopy(row, 0, dst, offset + y * stride, width);
+            }
+        });
+    }
+    
+    /**
+     * Decodes image into a memory mapped file.
+     * @param dst destination file.
+     * @param offset index of the upper left pixel.
+     * @param stride distance between rows in the file.
+     * @throws IOException when file can't be read or is damaged.
+     */
+    public void read(final MappedPixelFile dst, final long offset, 
+                     final long stride) throws IOException {
+        if(stride < width || offset < 0 || offset + (height - 1) * stride + 
+           width > (long)dst.getWidth() * dst.getHeight()){
+            String err = "Image doesn't fit in the file!";
+            throw new IllegalArgumentException(err);
+        }
+        read(new RowTarget() {
+            @Override
+            public void put(int y, int[] row) {
+                dst.put(offset + y * stride, row, 0, width);
+            }
+        });
+    }
+    
+    /**
+     * Decodes rows one by one, image may be read only once.
+     * @param target destination of rows.
+     * @throws IOException when file can't be read or is damaged.
+     */
+    private void read(RowTarget target) throws IOException {
+        if(read){
+            throw new IllegalStateException("Image is read already!");
+        }
+        read = true;
+        int[] index = new int[64];
+        int[] row = new int[width];
+        int argb = 0xFF000000;
+        int run = 0;
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                if(run > 0){
+                    run--;
+                    row[x] = argb;
+                    continue;
+                }
+                int b1 = next();
+                if(b1 == QoiWriter.OP_RGB){
+                    argb = argb & 0xFF000000 | next() << 16 | next() << 8 |
+                           next();
+                } else if(b1 == QoiWriter.OP_RGBA){
+                    argb = next() << 16 | next() << 8 | next();
+                    argb |= next() << 24;
+                } else {
+                    switch(b1 & 0xC0){
+                        case QoiWriter.OP_INDEX:
+                            argb = index[b1];
+                            break;
+                        case QoiWriter.OP_DIFF:
+                            argb = withRGB(argb, ((b1 >> 4) & 3) - 2, 
+                                           ((b1 >> 2) & 3) - 2, 
+                                           (b1 & 3) - 2);
+                            break;
+                        case QoiWriter.OP_LUMA:
+                            int b2 = next();
+                            int dg = (b1 & 0x3F) - 32;
+                            argb = withRGB(argb, dg - 8 + (b2 >> 4), dg, 
+                                           dg - 8 + (b2 & 0x0F));
+                            break;
+                        default:
+                            run = b1 & 0x3F;
+                    }
+                }
+                index[QoiWriter.hash(argb)] = argb;
+                row[x] = argb;
+            }
+            target.put(y, row);
+        }
+    }
+    
+    /**
+     * Adds differences to color components of the pixel.
+     * @return pixel with new color and the same alpha.
+     */
+    private static int withRGB(int argb, int dr, int dg, int db){
+        return argb & 0xFF000000 | 
+               ((argb >> 16) + dr & 0xFF) << 16 |
+               ((argb >> 8) + dg & 0xFF) << 8 |
+               (argb + db & 0xFF);
+    }
+    
+    /**
+     * @return next byte of the data.
+     * @throws IOException when data ends.
+     */
+    private int next() throws IOException {
+        if(pos == limit){
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if(limit <= 0){
+                limit = 0;
+                throw new EOFException("QOI image ends too early");
+            }
+        }
+        return buffer[pos++] & 0xFF;
+    }
+    
+    /**
+     * @return big-endian int at the position.
+     */
+    private static int getInt(byte[] b, int pos){
+        return (b[pos] & 0xFF) << 24 | (b[pos + 1] & 0xFF) << 16 | 
+               (b[pos + 2] & 0xFF) << 8 | (b[pos + 3] & 0xFF);
+    }
+    
+    /**
+     * Closes the file.
+     */
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    /**
+     * @return width of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * @return height of the image.
+     */
+    public int getHeight() {
+        return height;
+    }
+}
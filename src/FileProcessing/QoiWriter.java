@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package FileProcessing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes images in QOI ("Quite OK Image") format straight from arrays of 
+ * ARGB pixels. QOI is lossless and much faster than png, opaque images are
+ * marked as having 3 channels.
+ * @author Aleksandr Šmailov
+ */
+public class QoiWriter {
+    /** Extension of QOI images. */
+    public static final String EXTENSION = "qoi";
+    
+    static final int MAGIC = 'q' << 24 | 'o' << 16 | 'i' << 8 | 'f';
+    static final int OP_INDEX = 0x00;
+    static final int OP_DIFF = 0x40;
+    static final int OP_LUMA = 0x80;
+    static final int OP_RUN = 0xC0;
+    static final int OP_RGB = 0xFE;
+    static final int OP_RGBA = 0xFF;
+    static final int MAX_RUN = 62;
+    static final byte[] END = {0, 0, 0, 0, 0, 0, 0, 1};
+    
+    // Size of the output buffer, longest chunk is 5 bytes.
+    private static final int BUFFER = 1 << 16;
+    
+    private QoiWriter() {
+    }
+    
+    /**
+     * Writes image to a file.
+     * @param pixels array of ARGB pixels.
+     * @param offset index of the upper left pixel.
+     * @param stride distance between rows in the array.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param f output file.
+     * @throws IOException when file can't be written.
+     */
+    public static void write(int[] pixels, int offset, int stride, int width,
+                             int height, File f) throws IOException {
+        OutputStream out = new FileOutputStream(f);
+        try {
+            write(pixels, offset, stride, width, height, out);
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Writes image to a stream, stream is not closed.
+     * @param pixels array of ARGB pixels.
+     * @param offset index of the upper left pixel.
+     * @param stride distance between rows in the array.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param out output stream.
+     * @throws IOException when stream can't be written.
+     * @throws IllegalArgumentException when image doesn't fit in the array.
+     */
+    public static void write(int[] pixels, int offset, int stride, int width,
+                             int height, OutputStream out) 
+            throws IOException {
+        if(width <= 0 || height <= 0 || stride < width || offset < 0 ||
+           offset + (long)(height - 1) * stride + width > pixels.length){
+            String err = "Image doesn't fit in the array of pixels!";
+            throw new IllegalArgumentException(err);
+        }
+        byte[] buffer = new byte[BUFFER];
+        int pos = 0;
+        boolean alpha = false;
+        for(int y = 0; y < height && !alpha; y++){
+            int row = offset + y * stride;
+            for(int x = 0; x < width; x++){
+                if(pixels[row + x] >>> 24 != 0xFF){
+                    alpha = true;
+                    break;
+                }
+            }
+        }
+        pos = putInt(buffer, pos, MAGIC);
+        pos = putInt(buffer, pos, width);
+        pos = putInt(buffer, pos, height);
+        buffer[pos++] = (byte)(alpha ? 4 : 3);
+        // sRGB with linear alpha.
+        buffer[pos++] = 0;
+        
+        int[] index = new int[64];
+        int previous = 0xFF000000;
+        int run = 0;
+        for(int y = 0; y < height; y++){
+            int row = offset + y * stride;
+            for(int x = 0; x < width; x++){
+                if(pos > BUFFER - 8){
+                    out.write(buffer, 0, pos);
+                    pos = 0;
+                }
+                int argb = pixels[row + x];
+                if(argb == previous){
+                    run++;
+                    if(run == MAX_RUN){
+                        buffer[pos++] = (byte)(OP_RUN | run - 1);
+                        run = 0;
+                    }
+                    continue;
+                }
+                if(run > 0){
+                    buffer[pos++] = (byte)(OP_RUN | run - 1);
+                    run = 0;
+                }
+                int hash = hash(argb);
+                if(index[hash] == argb){
+                    buffer[pos++] = (byte)(OP_INDEX | hash);
+                    previous = argb;
+                    continue;
+                }
+                index[hash] = argb;
+                if((argb ^ previous) >>> 24 != 0){
+                    buffer[pos++] = (byte)OP_RGBA;
+                    buffer[pos++] = (byte)(argb >> 16);
+                    buffer[pos++] = (byte)(argb >> 8);
+                    buffer[pos++] = (byte)argb;
+                    buffer[pos++] = (byte)(argb >>> 24);
+                    previous = argb;
+                    continue;
+                }
+                int dr = (byte)((argb >> 16) - (previous >> 16));
+                int dg = (byte)((argb >> 8) - (previous >> 8));
+                int db = (byte)(argb - previous);
+                int drg = dr - dg;
+                int dbg = db - dg;
+                if(dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && 
+                   db >= -2 && db <= 1){
+                    buffer[pos++] = (byte)(OP_DIFF | (dr + 2) << 4 | 
+                                           (dg + 2) << 2 | (db + 2));
+                } else if(dg >= -32 && dg <= 31 && drg >= -8 && drg <= 7 &&
+                          dbg >= -8 && dbg <= 7){
+                    buffer[pos++] = (byte)(OP_LUMA | (dg + 32));
+                    buffer[pos++] = (byte)((drg + 8) << 4 | (dbg + 8));
+                } else {
+                    buffer[pos++] = (byte)OP_RGB;
+                    buffer[pos++] = (byte)(argb >> 16);
+                    buffer[pos++] = (byte)(argb >> 8);
+                    buffer[pos++] = (byte)argb;
+                }
+                previous = argb;
+            }
+        }
+        if(run > 0){
+            buffer[pos++] = (byte)(OP_RUN | run - 1);
+        }
+        if(pos > BUFFER - END.length){
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+        System.arraycopy(END, 0, buffer, pos, END.length);
+        pos += END.length;
+        out.write(buffer, 0, pos);
+        out.flush();
+    }
+    
+    /**
+     * @param argb pixel.
+     * @return position of the pixel in the index of seen pixels.
+     */
+    static int hash(int argb){
+        return ((argb >> 16 & 0xFF) * 3 + (argb >> 8 & 0xFF) * 5 + 
+                (argb & 0xFF) * 7 + (argb >>> 24) * 11) & 63;
+    }
+    
+    /**
+     * Puts big-endian int into the buffer.
+     * @return position after the int.
+     */
+    private static int putInt(byte[] buffer, int pos, int value){
+        buffer[pos++] = (byte)(value >>> 24);
+        buffer[pos++] = (byte)(value >>> 16);
+        buffer[pos++] = (byte)(value >>> 8);
+        buffer[pos++] = (byte)value;
+        return pos;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package FileProcessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Raw image container, pixels are stored without compression so the file is
+ * memory mapped instead of decoded. File starts with a header of 32 bytes,
+ * little-endian ints: magic, version, width, height, padded length, pixel 
+ * format, mode and a reserved zero. ARGB pixels follow row by row in 
+ * little-endian byte order, there are padded length * padded length of 
+ * them when padded length isn't zero, otherwise width * height. Width and 
+ * height are the size of the image before it was padded.
+ * @author Aleksandr Šmailov
+ */
+public class RawImageFile {
+    /** Extension of raw image files. */
+    public static final String EXTENSION = "fraw";
+    /** Size of the header in bytes. */
+    public static final int HEADER_BYTES = 32;
+    /** ARGB ints in little-endian byte order. */
+    public static final int FORMAT_ARGB = 1;
+    /** Mode of images which aren't encrypted. */
+    public static final int NO_MODE = -1;
+    
+    // "FRAW" read as little-endian int.
+    private static final int MAGIC = 'F' | 'R' << 8 | 'A' << 16 | 'W' << 24;
+    private static final int VERSION = 1;
+    
+    private final int width;
+    private final int height;
+    private final int paddedLength;
+    private final int mode;
+    private final MappedPixelFile pixels;
+
+    private RawImageFile(int width, int height, int paddedLength, int mode,
+                         MappedPixelFile pixels) {
+        this.width = width;
+        this.height = height;
+        this.paddedLength = paddedLength;
+        this.mode = mode;
+        this.pixels = pixels;
+    }
+    
+    /**
+     * Creates (or overwrites) file, writes its header and maps pixels for 
+     * writing.
+     * @param f file.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param paddedLength length of the padded square image, 0 when image 
+     * isn't padded.
+     * @param mode mode the image was encrypted in, {@link #NO_MODE} when it
+     * isn't encrypted.
+     * @return raw image file.
+     * @throws IOException when file can't be created or mapped.
+     * @throws IllegalArgumentException when size is wrong.
+     */
+    public static RawImageFile create(File f, int width, int height, 
+                                      int paddedLength, int mode) 
+            throws IOException {
+        if(width <= 0 || height <= 0){
+            String err = "Image width and height must be positive!";
+            throw new IllegalArgumentException(err);
+        }
+        if(paddedLength != 0 && 
+           (paddedLength < width || paddedLength < height)){
+            String err = "Padded image must contain the image!";
+            throw new IllegalArgumentException(err);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height)
+              .putInt(paddedLength).putInt(FORMAT_ARGB).putInt(mode)
+              .putInt(0);
+        header.flip();
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        try {
+            file.getChannel().write(header, 0);
+            MappedPixelFile pixels = MappedPixelFile.map(file, HEADER_BYTES,
+                    dataLength(width, paddedLength), 
+                    dataLength(height, paddedLength), true);
+            return new RawImageFile(width, height, paddedLength, mode, 
+                                    pixels);
+        } catch (IOException | RuntimeException e){
+            file.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Opens file and maps its pixels.
+     * @param f file.
+     * @param writable true to map pixels for reading and writing.
+     * @return raw image file.
+     * @throws IOException when file isn't a raw image or can't be mapped.
+     */
+    public static RawImageFile open(File f, boolean writable) 
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, writable ? "rw" : "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                                          .order(ByteOrder.LITTLE_ENDIAN);
+            if(file.getChannel().read(header, 0) != HEADER_BYTES || 
+               header.getInt(0) != MAGIC){
+                throw new IOException("Not a raw image: " + f);
+            }
+            if(header.getInt(4) != VERSION || 
+               header.getInt(20) != FORMAT_ARGB){
+                throw new IOException("Unsupported raw image: " + f);
+            }
+            int width = header.getInt(8);
+            int height = header.getInt(12);
+            int paddedLength = header.getInt(16);
+            if(width <= 0 || height <= 0 || (paddedLength != 0 && 
+               (paddedLength < width || paddedLength < height))){
+                throw new IOException("Damaged raw image: " + f);
+            }
+            // Writable mapping would resize the file, so check it first.
+            long size = (long)dataLength(width, paddedLength) * 
+                        dataLength(height, paddedLength) * Integer.BYTES;
+            if(file.length() < HEADER_BYTES + size){
+                throw new IOException("Damaged raw image: " + f);
+            }
+            MappedPixelFile pixels = MappedPixelFile.map(file, HEADER_BYTES,
+                    dataLength(width, paddedLength), 
+                    dataLength(height, paddedLength), writable);
+            return new RawImageFile(width, height, paddedLength, 
+                                    header.getInt(24), pixels);
+        } catch (IOException | RuntimeException e){
+            file.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Checks if file starts with the magic of raw images.
+     * @param f file.
+     * @return true if file is a raw image.
+     */
+    public static boolean isRawImage(File f) {
+        if(!f.isFile() || f.length() < HEADER_BYTES){
+            return false;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(f, "r");
+            try {
+                ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES)
+                                             .order(ByteOrder.LITTLE_ENDIAN);
+                return file.getChannel().read(magic, 0) == Integer.BYTES && 
+                       magic.getInt(0) == MAGIC;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * @param length width or height of the image.
+     * @param paddedLength length of the padded image or 0.
+     * @return width or height of stored pixels.
+     */
+    private static int dataLength(int length, int paddedLength){
+        return paddedLength == 0 ? length : paddedLength;
+    }
+    
+    /**
+     * Closes the file.
+     */
+    public void close() {
+        pixels.close();
+    }
+    
+    /**
+     * @return mapped pixels, their size is the size of stored image.
+     */
+    public MappedPixelFile getPixels() {
+        return pixels;
+    }
+    
+    /**
+     * @return width of the image before padding.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * @return height of the image before padding.
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * @return length of the padded square image, 0 when image isn't padded.
+     */
+    public int getPaddedLength() {
+        return paddedLength;
+    }
+    
+    /**
+     * @return mode the image was encrypted in, {@link #NO_MODE} when it 
+     * isn't encrypted.
+     */
+    public int getMode() {
+        return mode;
+    }
+}
@@ -24,44 +24,105 @@
 
 package GUI;
 
+import FileProcessing.FileHandler;
+import FileProcessing.MappedPixelFile;
+import FileProcessing.RawImageFile;
+import ImageProcessing.FrameStore;
+import ImageProcessing.ImageCache;
 import ImageProcessing.ImageCreator;
 import ImageProcessing.ImageHandler;
 import Main.Fractal;
+import Main.FractalKey;
+import Main.FractalMode;
+import Main.FractalPlan;
+import Main.FractalPlanCache;
+import Main.LevelListener;
+import Main.ProgressListener;
+import Main.RectangularFractal;
 import Main.SquareDihedralGroup;
+import Main.TiledFractal;
+import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CancellationException;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 /**
  * @author Aleksandr Šmailov
  */
-public class DrawPanel extends JPanel implements Runnable{
+public class DrawPanel extends JPanel{
+    // Delay between animation frames by default, in milliseconds.
+    private static final int DEFAULT_FRAME_DELAY = 700;
+    // Limits of zoom.
+    private static final double MIN_ZOOM = 1.0 / 256;
+    private static final double MAX_ZOOM = 64;
+    // Rows of the cropped region decrypted between checks for cancelling.
+    private static final int REGION_BAND_ROWS = 64;
+    // Plans keep one index per pixel, so only few of them are kept and only
+    // for images whose plan takes at most this part of the heap.
+    private static final int MAX_PLANS = 4;
+    private static final int PLAN_HEAP_SHARE = 16;
+    // Images too big for the heap are read this many rows at once and 
+    // transformed in tiles of this many pixels.
+    private static final int OUT_OF_CORE_BAND_ROWS = 256;
+    private static final int OUT_OF_CORE_TILE_BUDGET = 1 << 16;
     
     private int width, height;
-    private int x0,y0;
     private int xDiff, yDiff;
     
-    private static Thread animator;
+    // What is painted, new state is published whenever it changes.
+    private volatile RenderState state;
+    // Shows next animation frame on every tick while animation is drawn.
+    private Timer animationTimer;
+    // Pyramids of starting and encrypted/decrypted images, only used on 
+    // event dispatch thread.
+    private TilePyramid imagePyramid;
+    private TilePyramid resultPyramid;
     private int animationMode;
-    private int drawingMode;
     private int start;
     
     private String imagePath;
-    private BufferedImage imageToEncryptDecrypt;
-    private BufferedImage encryptedDecryptedImage;
     private int cropWidth;
     private int cropHeight;
     private ImageHandler handler;
+    // Decoded images, so every run with new keys doesn't read the file.
+    private final ImageCache imageCache = 
+            new ImageCache(Runtime.getRuntime().maxMemory() / 4);
     private ImageCreator creator;
-    private Fractal fractal;
+    // Plans of square encryption, so same key and image size are encrypted
+    // and decrypted in one pass.
+    private final FractalPlanCache planCache = 
+            new FractalPlanCache(MAX_PLANS);
+    // Fractals may be cancelled from another thread while they run.
+    private volatile Fractal fractal;
+    private volatile RectangularFractal rectFractal;
+    private volatile TiledFractal tiledFractal;
+    private volatile boolean cancelled;
+    // How many bytes of the heap decoded image, its padded copy and the 
+    // result may take, bigger square images are transformed in files.
+    private long heapImageBudget = Runtime.getRuntime().maxMemory() / 2;
+    // File the last result was written to instead of the heap, or null.
+    private volatile File resultFile;
+    // Receives progress of encryption and decryption, may be null.
+    private volatile ProgressListener progressListener;
+    private FractalMode mode;
     private int iterations;
     private int[] transf;
+    // Number of threads square fractals use, Morton layout runs on one 
+    // thread so by default it's only used when there is one processor.
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean mortonLayout = parallelism == 1;
     
-    private BufferedImage[] frames;
-    private int currFrame;
+    // How many bytes of the heap animation frames may take.
+    private long frameMemoryBudget;
     /**
      * DrawPanel constructor.
      */
@@ -69,126 +130,746 @@ public class DrawPanel extends JPanel implements Runnable{
         init();
     }
     
-    private void drawImage(Graphics2D g, BufferedImage image){
-        g.drawImage(image,x0,y0-image.getHeight()+1,null);
+    /**
+     * Draws image with its lower left corner at the origin point. Image is
+     * scaled by Java2D, which only draws its visible part.
+     * @param g graphics.
+     * @param image image.
+     * @param s state to draw.
+     */
+    private void drawImage(Graphics2D g, BufferedImage image, 
+                           RenderState s){
+        if(image == null){
+            return;
+        }
+        double zoom = s.getZoom();
+        int w = (int)Math.round(image.getWidth() * zoom);
+        int h = (int)Math.round(image.getHeight() * zoom);
+        g.drawImage(image, s.getX0(), s.getY0() - h + 1, w, h, null);
+    }
+    
+    /**
+     * Draws visible tiles of the pyramid with image's lower left corner at
+     * the origin point. Image may be shown in the upper left corner of a 
+     * black square, so padded copy of it doesn't have to be made.
+     * @param g graphics.
+     * @param pyramid pyramid of the image.
+     * @param s state to draw.
+     * @param length length of the side of the square or 0 when image is 
+     * shown as it is.
+     */
+    private void drawTiled(Graphics2D g, TilePyramid pyramid, RenderState s,
+                           int length){
+        if(pyramid == null){
+            return;
+        }
+        double zoom = s.getZoom();
+        int height = Math.max(pyramid.getImage().getHeight(), length);
+        int h = (int)Math.round(height * zoom);
+        if(length > 0){
+            int side = (int)Math.round(length * zoom);
+            g.setColor(Color.BLACK);
+            g.fillRect(s.getX0(), s.getY0() - h + 1, side, side);
+        }
+        pyramid.paint(g, s.getX0(), s.getY0() - h + 1, zoom);
+    }
+    
+    /**
+     * Returns pyramid of the image, new one is built when image changed.
+     * @param pyramid current pyramid, may be null.
+     * @param image image, may be null.
+     * @return pyramid of the image or null when there is no image.
+     */
+    private TilePyramid updatePyramid(TilePyramid pyramid, 
+                                      BufferedImage image){
+        if(pyramid != null && pyramid.getImage() == image){
+            return pyramid;
+        }
+        if(pyramid != null){
+            pyramid.dispose();
+        }
+        if(image == null){
+            return null;
+        }
+        return new TilePyramid(image, this);
     }
     /**
      * Initialize variables.
      */
     private void init(){
         // Drawing mode 0 means no image drawing at all.
-        drawingMode = 0;
+        state = new RenderState(0, 0, 0, 1, null, 0, null, null, 0);
         animationMode = 0;
-        currFrame = 0;
         cropWidth = 0;
         cropHeight = 0;
         
         transf = new int[4];
+        mode = FractalMode.SQUARE;
+        frameMemoryBudget = Runtime.getRuntime().maxMemory() / 4;
         
         iterations = 1;
         start = 0;
-        // Creating and starting new Thread so we can do animation.
-        if (animator == null) {
-            animator = new Thread(this, "Animation");
-            animator.start();
+        // Timer ticks on event dispatch thread and only while animation is
+        // drawn, otherwise panel is repainted only when state changes.
+        animationTimer = new Timer(DEFAULT_FRAME_DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showNextFrame();
+            }
+        });
+    }
+    
+    /**
+     * Publishes new state and asks for repainting.
+     * @param newState new state.
+     */
+    private void publish(RenderState newState){
+        state = newState;
+        repaint();
+    }
+    
+    /**
+     * Shows next animation frame.
+     */
+    private synchronized void showNextFrame(){
+        if(state.getDrawingMode() == 3){
+            publish(state.nextFrame());
         }
     }
     
     /**
-     * Encrypt image.
+     * Encrypt image. Square images small enough are encrypted with a plan 
+     * of the key, see {@link FractalPlan}. Square images which don't fit 
+     * into {@link #getHeapImageBudget() heap image budget} are encrypted 
+     * into a raw image file next to the image, see {@link #getResultFile()}.
      * @return iteration(level) reached.
+     * @throws IOException when image too big for the heap can't be read or
+     * encrypted image can't be written.
      */
-    public int encryptImage(){
-        handler = new ImageHandler(getImagePath());
-        fractal = new Fractal(handler.getPaddedPixels(),
-                              handler.getPaddedImageLength(),
-                              getTransf());
-        int iterReached = fractal.createFractal(getIterations());
-        creator = new ImageCreator(fractal.getNewPixels(), 
-                                   handler.getPaddedImageLength(),
-                                   handler.getPaddedImageLength());
-        setEncryptedDecryptedImage(creator.createImage());
+    public int encryptImage() throws IOException {
+        resultFile = null;
+        if(getMode() == FractalMode.SQUARE && readOversizedHeader() != null){
+            return transformOutOfCore(true);
+        }
+        handler = imageCache.get(getImagePath());
+        int length = Math.max(handler.getWidth(), handler.getHeight());
+        if(getMode() == FractalMode.SQUARE && fitsPlan(length)){
+            checkCancelled();
+            planCache.setParallelism(getParallelism());
+            planCache.setMortonLayout(isMortonLayout());
+            planCache.setProgressListener(progressListener);
+            FractalPlan plan = planCache.getPlan(getTransf(), getIterations(),
+                                                 length);
+            setPlanResult(plan.encrypt(handler.getPixelsARGB(), 
+                                       handler.getWidth(), 
+                                       handler.getHeight()), length);
+            return plan.getLevelReached();
+        }
+        newFractal(getTransf());
+        int iterReached = runFractal(getIterations(), true, 
+                                     plainListener());
+        setEncryptedDecryptedImage(createResultImage());
         return iterReached;
     }
     
     /**
-     * Decrypt image.
+     * Decrypt image. When cropping size is smaller than the image, only 
+     * cropped part of the image is decrypted. Mode recorded in the image is 
+     * used, if there is one, raw images also give size for cropping. Whole 
+     * square image is decrypted with a plan of the key when encryption has
+     * left one in the cache, plans are not built for decryption since keys
+     * are often just being tried. Square images which don't fit into 
+     * {@link #getHeapImageBudget() heap image budget} are decrypted into a
+     * raw image file next to the image, see {@link #getResultFile()}.
      * @return iteration(level) reached.
+     * @throws IOException when image too big for the heap can't be read or
+     * decrypted image can't be written.
      */
-    public int decryptImage(){
-        handler = new ImageHandler(getImagePath());
-        int[] transforms;
-        transforms = SquareDihedralGroup.inverseTransformations(getTransf());
-        fractal = new Fractal(handler.getPaddedPixels(),
-                              handler.getPaddedImageLength(),
-                              transforms);
-        int iterReached = fractal.destroyFractal(getIterations());
-        creator = new ImageCreator(fractal.getNewPixels(), 
-                                   handler.getPaddedImageLength(),
-                                   handler.getPaddedImageLength());
+    public int decryptImage() throws IOException {
+        resultFile = null;
+        ImageHandler header = readOversizedHeader();
+        if(header != null){
+            FractalMode recorded = getRecordedMode(header);
+            if(recorded != null){
+                setMode(recorded);
+            }
+            if(getMode() == FractalMode.SQUARE){
+                return transformOutOfCore(false);
+            }
+        }
+        handler = imageCache.get(getImagePath());
+        FractalMode recorded = getRecordedMode(handler);
+        if(recorded != null){
+            setMode(recorded);
+        }
+        if(getMode() == FractalMode.RECTANGULAR){
+            newFractal(SquareDihedralGroup.inverseTransformations(
+                    getTransf()));
+            int iterReached = runFractal(getIterations(), false, 
+                                         plainListener());
+            setEncryptedDecryptedImage(cropResultImage(createResultImage()));
+            return iterReached;
+        }
+        int length = Math.max(handler.getWidth(), handler.getHeight());
         if(getCropWidth() == 0 || getCropHeight() == 0){
-            setCropWidth(handler.getPaddedImageLength());
-            setCropHeight(handler.getPaddedImageLength());
-        }
-        BufferedImage img = creator.createImage();
-        BufferedImage img2 = handler.cropImage(img, getCropWidth(), 
-                                               getCropHeight());
-        if(img2 != null){
-            setEncryptedDecryptedImage(img2);
-        } else {
-            setEncryptedDecryptedImage(img);
+            setCropWidth(length);
+            setCropHeight(length);
+        }
+        // Image can't be cropped to bigger size, so decrypt whole image.
+        if(getCropWidth() > length || getCropHeight() > length ||
+           (getCropWidth() == length && getCropHeight() == length)){
+            FractalPlan plan = findPlan(length);
+            if(plan != null){
+                checkCancelled();
+                setPlanResult(plan.decrypt(handler.getPixelsARGB(), 
+                                           handler.getWidth(), 
+                                           handler.getHeight()), length);
+                return plan.getLevelReached();
+            }
+            newFractal(SquareDihedralGroup.inverseTransformations(
+                    getTransf()));
+            int iterReached = runFractal(getIterations(), false, 
+                                         plainListener());
+            setEncryptedDecryptedImage(createResultImage());
+            return iterReached;
+        }
+        // Encrypted images are squares already, so normally nothing is 
+        // padded here.
+        int[] region = decryptRegion(handler.getPaddedPixels(), length);
+        creator = new ImageCreator(region, getCropHeight(), getCropWidth());
+        setEncryptedDecryptedImage(creator.createImage());
+        return Fractal.calcLevelReached(length, getIterations());
+    }
+    
+    /**
+     * Decrypts cropped region of the square image in bands of rows, so 
+     * decryption can be cancelled between them.
+     * @param pixels pixels of the padded encrypted image.
+     * @param length length of the side of the image.
+     * @return pixels of the cropped region.
+     * @throws CancellationException when operation was cancelled.
+     */
+    private int[] decryptRegion(int[] pixels, int length)
+            throws CancellationException {
+        int regionWidth = getCropWidth();
+        int regionHeight = getCropHeight();
+        int[] region = new int[regionWidth * regionHeight];
+        for(int y = 0; y < regionHeight; y += REGION_BAND_ROWS){
+            checkCancelled();
+            int rows = Math.min(REGION_BAND_ROWS, regionHeight - y);
+            int[] band = Fractal.decryptRegion(pixels, length, getTransf(),
+                                               getIterations(), 0, y, 
+                                               regionWidth, rows);
+            System.arraycopy(band, 0, region, y * regionWidth, band.length);
+        }
+        return region;
+    }
+    
+    /**
+     * @param length length of the side of the (padded) image.
+     * @return true when plan for the image takes small enough part of the 
+     * heap.
+     */
+    private boolean fitsPlan(int length){
+        return (long)length * length * 4 <= 
+               Runtime.getRuntime().maxMemory() / PLAN_HEAP_SHARE;
+    }
+    
+    /**
+     * @param length length of the side of the (padded) image.
+     * @return cached plan for the current key or null.
+     */
+    private FractalPlan findPlan(int length){
+        if(!fitsPlan(length)){
+            return null;
+        }
+        return planCache.findPlan(new FractalKey(getTransf(), 
+                                                 getIterations(), length));
+    }
+    
+    /**
+     * Makes image of pixels transformed by a plan the result. Fractals of 
+     * the previous run are not needed any more.
+     * @param pixels transformed pixels of the padded image.
+     * @param length length of the side of the image.
+     */
+    private void setPlanResult(int[] pixels, int length){
+        fractal = null;
+        rectFractal = null;
+        creator = new ImageCreator(pixels, length, length);
+        setEncryptedDecryptedImage(creator.createImage());
+    }
+    
+    /**
+     * Mode recorded in the image which is being decrypted. It's read with 
+     * the image, so it comes from the cache with it. Padded raw image's size
+     * before padding becomes cropping size unless it's set.
+     * @param image handler of the image.
+     * @return mode recorded in the image or null.
+     */
+    private FractalMode getRecordedMode(ImageHandler image){
+        if(image.getUnpaddedWidth() != 0 && 
+           (getCropWidth() == 0 || getCropHeight() == 0)){
+            setCropWidth(image.getUnpaddedWidth());
+            setCropHeight(image.getUnpaddedHeight());
+        }
+        FractalMode[] modes = FractalMode.values();
+        int raw = image.getRecordedMode();
+        if(raw >= 0 && raw < modes.length){
+            return modes[raw];
+        }
+        return FractalMode.fromName(image.getText(FractalMode.KEY));
+    }
+    
+    /**
+     * Reads header of the image unless it's decoded already. Decoded image,
+     * its padded copy and the result are in the heap at once, so they are 
+     * compared with {@link #getHeapImageBudget() heap image budget}.
+     * @return header of the image when it's too big for the heap, null when
+     * it fits.
+     * @throws IOException when header can't be read.
+     */
+    private ImageHandler readOversizedHeader() throws IOException {
+        if(imageCache.find(getImagePath()) != null){
+            return null;
+        }
+        ImageHandler header = ImageHandler.readHeader(getImagePath());
+        long length = Math.max(header.getWidth(), header.getHeight());
+        if(length * length * 4 * 3 <= getHeapImageBudget()){
+            return null;
+        }
+        return header;
+    }
+    
+    /**
+     * Checks if opened image fits into 
+     * {@link #getHeapImageBudget() heap image budget}, image is not decoded
+     * for that.
+     * @return true when image fits or is decoded already.
+     * @throws IOException when header of the image can't be read.
+     */
+    public boolean fitsHeap() throws IOException {
+        return readOversizedHeader() == null;
+    }
+    
+    /**
+     * Encrypts or decrypts square image which is too big for the heap into
+     * a raw image file next to it, result is then not shown.
+     * @param encrypt true for encryption, false for decryption.
+     * @return iteration(level) reached.
+     * @throws IOException when image can't be read or result can't be 
+     * written.
+     */
+    private int transformOutOfCore(boolean encrypt) throws IOException {
+        File input = new File(getImagePath()).getAbsoluteFile();
+        String name = input.getName();
+        if(name.lastIndexOf('.') > 0){
+            name = name.substring(0, name.lastIndexOf('.'));
         }
+        name += encrypt ? "_encrypted." : "_decrypted.";
+        File output = new File(input.getParentFile(), 
+                               name + RawImageFile.EXTENSION);
+        int iterReached;
+        try {
+            if(encrypt){
+                iterReached = encryptFile(output);
+            } else {
+                iterReached = decryptFile(output);
+            }
+        } catch (IOException | RuntimeException e){
+            // Partly written result is of no use.
+            output.delete();
+            throw e;
+        }
+        setEncryptedDecryptedImage(null);
+        resultFile = output;
         return iterReached;
     }
     
     /**
-     * Create animation frames.
+     * Encrypts image in square mode into a raw image file. Image is read 
+     * band by band into a memory mapped file and encrypted tile by tile, 
+     * see {@link TiledFractal}, so it's never whole in the heap.
+     * @param output raw image file for the encrypted image.
+     * @return iteration(level) reached.
+     * @throws IOException when image can't be read or encrypted image can't
+     * be written.
+     * @throws CancellationException when operation was cancelled.
+     */
+    public int encryptFile(File output) throws IOException {
+        ImageHandler header = ImageHandler.readHeader(getImagePath());
+        int width = header.getWidth();
+        int height = header.getHeight();
+        // Padded raw image keeps its size before padding.
+        if(header.getUnpaddedWidth() != 0){
+            width = header.getUnpaddedWidth();
+            height = header.getUnpaddedHeight();
+        }
+        MappedPixelFile source = ImageHandler.readPaddedPixels(
+                getImagePath(), OUT_OF_CORE_BAND_ROWS);
+        try {
+            int length = source.getWidth();
+            int paddedLength = width == length && height == length ? 
+                               0 : length;
+            RawImageFile result = RawImageFile.create(output, width, height,
+                    paddedLength, FractalMode.SQUARE.ordinal());
+            try {
+                return newTiledFractal().encrypt(source, result.getPixels(),
+                                                 getIterations());
+            } finally {
+                result.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+    
+    /**
+     * Decrypts image in square mode into a raw image file the same way as
+     * {@link #encryptFile(File)}. Decrypted image is cropped to cropping 
+     * size, or to the size padded raw image had before padding, by recording
+     * that size in the file, it keeps the padding.
+     * @param output raw image file for the decrypted image.
+     * @return iteration(level) reached.
+     * @throws IOException when image can't be read or decrypted image can't
+     * be written.
+     * @throws CancellationException when operation was cancelled.
+     */
+    public int decryptFile(File output) throws IOException {
+        ImageHandler header = ImageHandler.readHeader(getImagePath());
+        int width = getCropWidth();
+        int height = getCropHeight();
+        if((width == 0 || height == 0) && header.getUnpaddedWidth() != 0){
+            width = header.getUnpaddedWidth();
+            height = header.getUnpaddedHeight();
+        }
+        MappedPixelFile source = ImageHandler.readPaddedPixels(
+                getImagePath(), OUT_OF_CORE_BAND_ROWS);
+        try {
+            int length = source.getWidth();
+            // Image can't be cropped to bigger size.
+            if(width == 0 || height == 0 || width > length || 
+               height > length){
+                width = length;
+                height = length;
+            }
+            int paddedLength = width == length && height == length ? 
+                               0 : length;
+            RawImageFile result = RawImageFile.create(output, width, height,
+                    paddedLength, RawImageFile.NO_MODE);
+            try {
+                return newTiledFractal().decrypt(source, result.getPixels(),
+                                                 getIterations());
+            } finally {
+                result.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+    
+    /**
+     * Creates fractal for images which don't fit into the heap.
+     * @return fractal with the current key.
+     */
+    private TiledFractal newTiledFractal(){
+        tiledFractal = new TiledFractal(getTransf(), OUT_OF_CORE_TILE_BUDGET);
+        // Operation may have been cancelled before fractal was created.
+        if(cancelled){
+            cancel();
+        }
+        return tiledFractal;
+    }
+    
+    /**
+     * Writes encrypted/decrypted image to a raw image file. Encrypted square
+     * image keeps the size of the starting image, so decryption crops it 
+     * back.
+     * @param f output file.
+     * @param encrypted true if image was encrypted.
      */
-    public void createFrames(){
-        int iter = getIterations();
-        frames = new BufferedImage[iter+1];
-        frames[0] = imageToEncryptDecrypt;
-        // If animation mode 0 then we need to create encryption frames.
-        if(getAnimationMode() == 0){
-            for(int i = 1; i <= iter; i++){
-                fractal.createFractal(i);
-                creator = new ImageCreator(fractal.getNewPixels(), 
-                                           handler.getPaddedImageLength(),
-                                           handler.getPaddedImageLength());
-                frames[i] = creator.createImage();
-                
+    public void writeRawResult(File f, boolean encrypted){
+        BufferedImage result = getEncryptedDecryptedImage();
+        int width = result.getWidth();
+        int height = result.getHeight();
+        int mode = RawImageFile.NO_MODE;
+        if(encrypted){
+            mode = getMode().ordinal();
+            if(getMode() == FractalMode.SQUARE && handler != null){
+                width = handler.getWidth();
+                height = handler.getHeight();
             }
         }
+        FileHandler.writeRaw(result, width, height, mode, f);
+    }
+    
+    /**
+     * Create animation frames. All frames come from one run of the fractal,
+     * image is taken after every level. Encryption frames show levels from
+     * the top one down, decryption frames show how levels are undone from 
+     * the deepest one up. Frames are kept in {@link FrameStore} within
+     * {@link #frameMemoryBudget}.
+     * @throws IOException when frames can't be spilled to a file.
+     */
+    public void createFrames() throws IOException {
+        final FrameStore store = new FrameStore(getFrameMemoryBudget());
         // If animation mode 1 then we need to create decryption frames.
-        if(getAnimationMode() == 1){
-            for(int i = 1; i <= iter; i++){
-                int[] transforms;
-                transforms = SquareDihedralGroup.inverseTransformations(
-                        getTransf());
-                fractal = new Fractal(handler.getPaddedPixels(),
-                                      handler.getPaddedImageLength(),
-                                      transforms);
-                fractal.destroyFractal(i);
-                creator = new ImageCreator(fractal.getNewPixels(), 
-                                           handler.getPaddedImageLength(),
-                                           handler.getPaddedImageLength());
-                if(getCropWidth() == 0 || getCropHeight() == 0){
-                    setCropWidth(handler.getPaddedImageLength());
-                    setCropHeight(handler.getPaddedImageLength());
+        final boolean decrypt = getAnimationMode() == 1;
+        if(decrypt){
+            newFractal(SquareDihedralGroup.inverseTransformations(
+                    getTransf()));
+        } else {
+            newFractal(getTransf());
+        }
+        // Starting image is the first frame. Square image is shown without 
+        // padding, but new fractal holds padded copy of it already.
+        RenderState s = state;
+        if(s.getImage() != null){
+            if(s.getImageLength() > 0 && fractal != null){
+                int length = fractal.getLength();
+                store.add(fractal.getNewPixels(), length, length, length);
+            } else {
+                store.add(s.getImage());
+            }
+        }
+        LevelListener listener = new LevelListener() {
+            @Override
+            public void levelCompleted(int level, int levels, int[] pixels){
+                int stride = getResultWidth();
+                int width = stride;
+                int height = getResultHeight();
+                // Decrypted frames are cropped, unless cropping size is not 
+                // set or is bigger than the image.
+                if(decrypt && getCropWidth() > 0 && getCropHeight() > 0 &&
+                   getCropWidth() <= width && getCropHeight() <= height){
+                    width = getCropWidth();
+                    height = getCropHeight();
+                }
+                try {
+                    store.add(pixels, stride, width, height);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-                BufferedImage img = creator.createImage();
-                BufferedImage img2 = handler.cropImage(img,getCropWidth(), 
-                                                       getCropHeight());
-                if(img2 != null){
-                    frames[i] = img2;
-                } else {
-                    frames[i] = img;
+                // Square fractals report progress themselves.
+                ProgressListener progress = progressListener;
+                if(progress != null && rectFractal != null){
+                    progress.progressChanged(level, levels);
                 }
-                
             }
+        };
+        try{
+            runFractal(getIterations(), !decrypt, listener);
+        } catch (UncheckedIOException e){
+            store.clear();
+            throw e.getCause();
+        } catch (CancellationException e){
+            store.clear();
+            throw e;
+        }
+        FrameStore old;
+        synchronized(this){
+            old = state.getFrames();
+            publish(state.withFrames(store));
+        }
+        if(old != null){
+            old.clear();
+        }
+    }
+    
+    /**
+     * Creates fractal of the current mode for the opened image.
+     * @param transforms transformation array.
+     */
+    private void newFractal(int[] transforms){
+        // Pixels of the handler are cached, fractals copy them and never 
+        // work in place.
+        if(getMode() == FractalMode.RECTANGULAR){
+            rectFractal = new RectangularFractal(handler.getPixelsARGB(),
+                                                 handler.getWidth(),
+                                                 handler.getHeight(),
+                                                 transforms);
+            fractal = null;
+        } else {
+            fractal = new Fractal(handler.getPixelsARGB(), 
+                                  handler.getWidth(), handler.getHeight(),
+                                  transforms);
+            fractal.setParallelism(getParallelism());
+            fractal.setMortonLayout(isMortonLayout());
+            fractal.setProgressListener(progressListener);
+            rectFractal = null;
+        }
+        // Operation may have been cancelled before fractal was created.
+        if(cancelled){
+            cancel();
         }
     }
     
+    /**
+     * Square fractals skip parallelism and Morton layout while a level 
+     * listener is set, because snapshots are taken between levels, so they 
+     * report progress of plain encryption and decryption to 
+     * {@link #progressListener} themselves. Rectangular fractals go level by
+     * level anyway and report it through a level listener.
+     * @return listener for plain encryption and decryption or null.
+     */
+    private LevelListener plainListener(){
+        if(rectFractal == null){
+            return null;
+        }
+        return new LevelListener() {
+            @Override
+            public void levelCompleted(int level, int levels, int[] pixels){
+                ProgressListener progress = progressListener;
+                if(progress != null){
+                    progress.progressChanged(level, levels);
+                }
+            }
+        };
+    }
+    
+    /**
+     * @return cache of decoded images used for encryption and decryption.
+     */
+    public ImageCache getImageCache(){
+        return imageCache;
+    }
+    
+    /**
+     * Cancels running encryption, decryption or creation of frames, it 
+     * stops with {@link CancellationException} at the next image part. May 
+     * be called from any thread. Operations stay cancelled until 
+     * {@link #resetCancelled()} is called.
+     */
+    public void cancel(){
+        cancelled = true;
+        planCache.setCancelled(true);
+        Fractal f = fractal;
+        if(f != null){
+            f.setCancelled(true);
+        }
+        RectangularFractal r = rectFractal;
+        if(r != null){
+            r.setCancelled(true);
+        }
+        TiledFractal t = tiledFractal;
+        if(t != null){
+            t.setCancelled(true);
+        }
+    }
+    
+    /**
+     * Allows operations to run again after {@link #cancel()}. It must be 
+     * called before the operation is started, not on the thread running it,
+     * otherwise cancelling right after the start would be lost.
+     */
+    public void resetCancelled(){
+        cancelled = false;
+        planCache.setCancelled(false);
+    }
+    
+    /**
+     * @throws CancellationException when operation was cancelled.
+     */
+    private void checkCancelled() throws CancellationException {
+        if(cancelled){
+            throw new CancellationException();
+        }
+    }
+    
+    /**
+     * Runs fractal created by {@link #newFractal(int[]) newFractal}.
+     * @param iter number of iterations.
+     * @param encrypt true to create fractal, false to destroy it.
+     * @param listener receives pixels after every level, may be null.
+     * @return iteration(level) reached.
+     * @throws CancellationException when operation was cancelled.
+     */
+    private int runFractal(int iter, boolean encrypt, LevelListener listener)
+            throws CancellationException {
+        RectangularFractal r = rectFractal;
+        if(r != null){
+            r.setLevelListener(listener);
+            try{
+                if(encrypt){
+                    return r.createFractal(iter);
+                }
+                return r.destroyFractal(iter);
+            } finally {
+                r.setLevelListener(null);
+            }
+        }
+        Fractal f = fractal;
+        f.setLevelListener(listener);
+        try{
+            if(encrypt){
+                return f.createFractal(iter);
+            }
+            return f.destroyFractal(iter);
+        } finally {
+            f.setLevelListener(null);
+        }
+    }
+    
+    /**
+     * @return image created from result of the last run of the fractal.
+     */
+    private BufferedImage createResultImage(){
+        if(rectFractal != null){
+            return createImage(rectFractal.getNewPixels());
+        }
+        return createImage(fractal.getNewPixels());
+    }
+    
+    /**
+     * Creates image of the current fractal's size around its pixels, 
+     * fractal is never run again so they are not copied.
+     * @param pixels pixels of the image.
+     * @return image.
+     */
+    private BufferedImage createImage(int[] pixels){
+        creator = new ImageCreator(pixels, getResultHeight(), 
+                                   getResultWidth());
+        return creator.createImage();
+    }
+    
+    /**
+     * @return width of the current fractal's image.
+     */
+    private int getResultWidth(){
+        if(rectFractal != null){
+            return rectFractal.getWidth();
+        }
+        return fractal.getLength();
+    }
+    
+    /**
+     * @return height of the current fractal's image.
+     */
+    private int getResultHeight(){
+        if(rectFractal != null){
+            return rectFractal.getHeight();
+        }
+        return fractal.getLength();
+    }
+    
+    /**
+     * Crops decrypted image to cropping size, if it's set and not bigger 
+     * than the image.
+     * @param img decrypted image.
+     * @return cropped image or the image itself.
+     */
+    private BufferedImage cropResultImage(BufferedImage img){
+        if(getCropWidth() == 0 || getCropHeight() == 0){
+            return img;
+        }
+        BufferedImage cropped = handler.cropImage(img, getCropWidth(), 
+                                                  getCropHeight());
+        if(cropped != null){
+            return cropped;
+        }
+        return img;
+    }
+    
     /**
      * Method draws X and Y axes on the JPanel.
      * @param g Graphics2D
@@ -196,6 +877,9 @@ public class DrawPanel extends JPanel implements Runnable{
     private void drawAxes(Graphics2D g){
         this.width = this.getWidth();
         this.height = this.getHeight();
+        RenderState s = state;
+        int x0 = s.getX0();
+        int y0 = s.getY0();
         // Draw axes.
         // X axis.
         g.drawLine(0, y0, width, y0);
@@ -215,25 +899,29 @@ public class DrawPanel extends JPanel implements Runnable{
     /**
      * Execute drawing.
      * @param g Graphics
+     * @param s state to draw.
      */
-    private void doDrawing(Graphics g) {
+    private void doDrawing(Graphics g, RenderState s) {
         Graphics2D g2d = (Graphics2D)g;
-        // Enable antialias
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                             RenderingHints.VALUE_ANTIALIAS_ON);
         // Draws differend images depending on the drawing mode.
-        switch (drawingMode){
+        switch (s.getDrawingMode()){
                 case 0: 
                     // No drawing at alltogether.
                         break;
                     // Draw starting image.
-                case 1: drawImage(g2d, imageToEncryptDecrypt);
+                case 1: imagePyramid = updatePyramid(imagePyramid, 
+                                                     s.getImage());
+                        drawTiled(g2d, imagePyramid, s, 
+                                  s.getImageLength());
                         break;
                     // Draw encrypted/decrypted image.
-                case 2: drawImage(g2d, encryptedDecryptedImage);
+                case 2: resultPyramid = updatePyramid(resultPyramid, 
+                                                      s.getResult());
+                        drawTiled(g2d, resultPyramid, s, 0);
                         break;
                     // Draw (animation) current frame.
-                case 3: drawImage(g2d, frames[currFrame]);
+                case 3: drawImage(g2d, s.getFrames().getImage(
+                                  s.getCurrFrame()), s);
                         break;
         }
     }
@@ -245,8 +933,11 @@ public class DrawPanel extends JPanel implements Runnable{
         if (start == 0){
             this.width = this.getWidth();
             this.height = this.getHeight();
-            this.x0 = this.getWidth()/8;
-            this.y0 = this.getHeight() - this.getHeight()/8;
+            synchronized(this){
+                state = state.withOrigin(this.getWidth()/8, 
+                                         this.getHeight() - 
+                                         this.getHeight()/8);
+            }
         }
         if (start <= 1){
             start++;
@@ -261,30 +952,8 @@ public class DrawPanel extends JPanel implements Runnable{
         super.paintComponent(g);
         // Calculating correct starting point.
         calcStartingPoint();
-        // Do drawing.
-        doDrawing(g);
-    }
-    
-    /**
-     * Run method.
-     */
-    @Override
-    public void run() {
-        while(true){
-            try {
-                repaint();
-                if(drawingMode == 3){
-                    Thread.sleep(700);
-                    if(currFrame != frames.length-1){
-                        currFrame++;
-                    } else {
-                        currFrame = 0;
-                    }
-                }
-            } catch (InterruptedException ex) {
-                ex.printStackTrace(System.err);
-            }
-        }
+        // Do drawing, state is read once so it can't change meanwhile.
+        doDrawing(g, state);
     }
     
     // Setters and getters.
@@ -295,15 +964,15 @@ public class DrawPanel extends JPanel implements Runnable{
      * intersection.
      */
     public int getX0() {
-        return x0;
+        return state.getX0();
     }
 
     /**
      * @param x0 x0 coordinate on JPanel representing origin point of X and Y
      * intersection.
      */
-    public void setX0(int x0) {
-        this.x0 = x0;
+    public synchronized void setX0(int x0) {
+        publish(state.withOrigin(x0, state.getY0()));
     }
 
     /**
@@ -311,16 +980,40 @@ public class DrawPanel extends JPanel implements Runnable{
      * intersection.
      */
     public int getY0() {
-        return y0;
+        return state.getY0();
     }
 
     /**
      * @param y0 y0 coordinate on JPanel representing origin point of X and Y
      * intersection.
      */
-    public void setY0(int y0) {
-        this.y0 = y0;
+    public synchronized void setY0(int y0) {
+        publish(state.withOrigin(state.getX0(), y0));
     }
+    /**
+     * Zooms images in or out keeping the point under the cursor in place.
+     * @param factor how many times to enlarge images, less than 1 shrinks
+     * them.
+     * @param x x coordinate of the cursor on the panel.
+     * @param y y coordinate of the cursor on the panel.
+     */
+    public synchronized void zoom(double factor, int x, int y) {
+        RenderState s = state;
+        double zoom = Math.max(MIN_ZOOM, 
+                               Math.min(MAX_ZOOM, s.getZoom() * factor));
+        double k = zoom / s.getZoom();
+        int newX0 = x - (int)Math.round((x - s.getX0()) * k);
+        int newY0 = y - (int)Math.round((y - s.getY0()) * k);
+        publish(s.withZoom(zoom, newX0, newY0));
+    }
+    
+    /**
+     * @return how many times images are enlarged.
+     */
+    public double getZoom() {
+        return state.getZoom();
+    }
+    
     /**
      * @return x coordinate of previous mouse location(one tick from current).
      */
@@ -369,8 +1062,21 @@ public class DrawPanel extends JPanel implements Runnable{
     /**
      * @param imageToEncryptDecrypt image we want to encrypt or decrypt.
      */
-    public void setImageToEncryptDecrypt(BufferedImage imageToEncryptDecrypt) {
-        this.imageToEncryptDecrypt = imageToEncryptDecrypt;
+    public void setImageToEncryptDecrypt(
+            BufferedImage imageToEncryptDecrypt) {
+        setImageToEncryptDecrypt(imageToEncryptDecrypt, 0);
+    }
+    
+    /**
+     * Sets image which is shown padded to a square with black color, 
+     * without making padded copy of it.
+     * @param imageToEncryptDecrypt image we want to encrypt or decrypt.
+     * @param length length of the side of the square, 0 to show image as it
+     * is.
+     */
+    public synchronized void setImageToEncryptDecrypt(
+            BufferedImage imageToEncryptDecrypt, int length) {
+        publish(state.withImage(imageToEncryptDecrypt, length));
     }
 
     /**
@@ -378,14 +1084,16 @@ public class DrawPanel extends JPanel implements Runnable{
      */
     private void setEncryptedDecryptedImage(
             BufferedImage encryptedDecryptedImage) {
-        this.encryptedDecryptedImage = encryptedDecryptedImage;
+        synchronized(this){
+            publish(state.withResult(encryptedDecryptedImage));
+        }
     }
     
     /**
      * @return encrypted/decrypted image.
      */
     public BufferedImage getEncryptedDecryptedImage() {
-        return encryptedDecryptedImage;
+        return state.getResult();
     }
     
     /**
@@ -399,7 +1107,15 @@ public class DrawPanel extends JPanel implements Runnable{
             String err = "Drawing mode must be in 0-3 range!";
             throw new IllegalArgumentException(err);
         } else {
-            this.drawingMode = drawingMode;
+            synchronized(this){
+                publish(state.withDrawingMode(drawingMode));
+            }
+            // Animation timer runs only while animation is drawn.
+            if(drawingMode == 3){
+                animationTimer.restart();
+            } else {
+                animationTimer.stop();
+            }
         }
     }
 
@@ -503,7 +1219,144 @@ public class DrawPanel extends JPanel implements Runnable{
     /**
      * @param currFrame frame of animation we are currently want to show.
      */
-    public void setCurrFrame(int currFrame) {
-        this.currFrame = currFrame;
+    public synchronized void setCurrFrame(int currFrame) {
+        publish(state.withCurrFrame(currFrame));
+    }
+    
+    /**
+     * @return mode in which images are encrypted.
+     */
+    public FractalMode getMode() {
+        return mode;
+    }
+    
+    /**
+     * @param mode mode in which images are encrypted, decryption uses mode
+     * recorded in the image when there is one.
+     */
+    public void setMode(FractalMode mode) {
+        this.mode = mode;
+    }
+    
+    /**
+     * @return how many bytes of the heap animation frames may take, frames
+     * beyond it are spilled to temporary files.
+     */
+    public long getFrameMemoryBudget() {
+        return frameMemoryBudget;
+    }
+    
+    /**
+     * @param frameMemoryBudget how many bytes of the heap animation frames 
+     * may take, frames beyond it are spilled to temporary files.
+     * @throws IllegalArgumentException when budget is negative.
+     */
+    public void setFrameMemoryBudget(long frameMemoryBudget) 
+            throws IllegalArgumentException {
+        if(frameMemoryBudget < 0){
+            String err = "Frame memory budget can't be negative!";
+            throw new IllegalArgumentException(err);
+        }
+        this.frameMemoryBudget = frameMemoryBudget;
+    }
+    
+    /**
+     * @return number of threads square fractals use.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    /**
+     * @param parallelism number of threads square fractals use, 1 runs them
+     * on the calling thread.
+     * @throws IllegalArgumentException when argument is negative or zero.
+     */
+    public void setParallelism(int parallelism) 
+            throws IllegalArgumentException {
+        if(parallelism < 1){
+            String err = "Parallelism must be positive, non zero number!";
+            throw new IllegalArgumentException(err);
+        }
+        this.parallelism = parallelism;
+    }
+    
+    /**
+     * @return true when square fractals use Morton layout.
+     */
+    public boolean isMortonLayout() {
+        return mortonLayout;
+    }
+    
+    /**
+     * @param mortonLayout true to use Morton layout for square fractals. It
+     * runs on one thread and is only used for images whose side is a power 
+     * of 2.
+     */
+    public void setMortonLayout(boolean mortonLayout) {
+        this.mortonLayout = mortonLayout;
+    }
+    
+    /**
+     * @return how many bytes of the heap decoded image, its padded copy and
+     * the result may take. Bigger square images are encrypted and decrypted
+     * into raw image files.
+     */
+    public long getHeapImageBudget() {
+        return heapImageBudget;
+    }
+    
+    /**
+     * @param heapImageBudget how many bytes of the heap decoded image, its
+     * padded copy and the result may take.
+     * @throws IllegalArgumentException when budget is negative.
+     */
+    public void setHeapImageBudget(long heapImageBudget) 
+            throws IllegalArgumentException {
+        if(heapImageBudget < 0){
+            String err = "Heap image budget can't be negative!";
+            throw new IllegalArgumentException(err);
+        }
+        this.heapImageBudget = heapImageBudget;
+    }
+    
+    /**
+     * @return raw image file the last encryption or decryption was written
+     * to because image was too big for the heap, null when result is 
+     * {@link #getEncryptedDecryptedImage() in memory}.
+     */
+    public File getResultFile() {
+        return resultFile;
+    }
+    
+    /**
+     * @return animation frames shown per second.
+     */
+    public double getFrameRate() {
+        return 1000.0 / animationTimer.getDelay();
+    }
+    
+    /**
+     * @param frameRate animation frames shown per second.
+     * @throws IllegalArgumentException when frame rate is not positive.
+     */
+    public void setFrameRate(double frameRate) 
+            throws IllegalArgumentException {
+        if(!(frameRate > 0)){
+            String err = "Frame rate must be positive number!";
+            throw new IllegalArgumentException(err);
+        }
+        int delay = (int)Math.max(1, Math.round(1000 / frameRate));
+        animationTimer.setDelay(delay);
+        animationTimer.setInitialDelay(delay);
+    }
+    
+    /**
+     * @param progressListener receives progress of encryption, decryption,
+     * building of plans and creation of frames, so it can be shown. It's 
+     * called on the threads doing the work. Null removes it.
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
     }
 }
@@ -24,12 +24,28 @@
 package GUI;
 
 import FileProcessing.FileHandler;
+import FileProcessing.QoiWriter;
+import FileProcessing.RawImageFile;
 import ImageProcessing.ImageCreator;
 import ImageProcessing.ImageHandler;
+import Main.FractalMode;
+import Main.ProgressListener;
 import java.awt.HeadlessException;
+import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.imageio.ImageIO;
 import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
@@ -41,6 +57,8 @@ public class GUI extends javax.swing.JFrame {
     // myPanel allows us to control the jPanel we created.
     private final DrawPanel myPanel;
     private boolean encrypted;
+    // Operation running in background, null when nothing runs.
+    private BackgroundTask<?> task;
     /**
      * Creates new form GUI
      */
@@ -78,6 +96,9 @@ public class GUI extends javax.swing.JFrame {
         heightLabel = new javax.swing.JLabel();
         heightField = new javax.swing.JTextField();
         animateButton = new javax.swing.JButton();
+        modeCheckBox = new javax.swing.JCheckBox();
+        progressBar = new javax.swing.JProgressBar();
+        cancelButton = new javax.swing.JButton();
 
         fileChooser.setAcceptAllFileFilterUsed(false);
         fileChooser.setCurrentDirectory(new java.io.File("C:\\Users\\Alex\\Desktop"));
@@ -92,6 +113,11 @@ public class GUI extends javax.swing.JFrame {
                 suffices[i]);
             fileChooser.addChoosableFileFilter(filter);
         }
+        // Raw and QOI images aren't known to ImageIO.
+        fileChooser.addChoosableFileFilter(new FileNameExtensionFilter(
+            RawImageFile.EXTENSION.toUpperCase(), RawImageFile.EXTENSION));
+        fileChooser.addChoosableFileFilter(new FileNameExtensionFilter(
+            QoiWriter.EXTENSION.toUpperCase(), QoiWriter.EXTENSION));
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("2D Affine Transformation");
@@ -108,6 +134,11 @@ public class GUI extends javax.swing.JFrame {
                 drawingPanelMousePressed(evt);
             }
         });
+        drawingPanel.addMouseWheelListener(new java.awt.event.MouseWheelListener() {
+            public void mouseWheelMoved(java.awt.event.MouseWheelEvent evt) {
+                drawingPanelMouseWheelMoved(evt);
+            }
+        });
 
         javax.swing.GroupLayout drawingPanelLayout = new javax.swing.GroupLayout(drawingPanel);
         drawingPanel.setLayout(drawingPanelLayout);
@@ -212,6 +243,24 @@ public class GUI extends javax.swing.JFrame {
             }
         });
 
+        modeCheckBox.setText("Rectangular");
+        modeCheckBox.setToolTipText("Encrypt image without padding it to a square");
+        modeCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                modeCheckBoxActionPerformed(evt);
+            }
+        });
+
+        progressBar.setStringPainted(true);
+
+        cancelButton.setText("Cancel");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                cancelButtonActionPerformed(evt);
+            }
+        });
+
         javax.swing.GroupLayout menuPanelLayout = new javax.swing.GroupLayout(menuPanel);
         menuPanel.setLayout(menuPanelLayout);
         menuPanelLayout.setHorizontalGroup(
@@ -249,6 +298,13 @@ public class GUI extends javax.swing.JFrame {
                 .addGroup(menuPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                     .addComponent(saveButton)
                     .addComponent(animateButton))
+                .addGap(18, 18, 18)
+                .addGroup(menuPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(modeCheckBox)
+                    .addGroup(menuPanelLayout.createSequentialGroup()
+                        .addComponent(progressBar, javax.swing.GroupLayout.PREFERRED_SIZE, 100, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(cancelButton)))
                 .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
         menuPanelLayout.setVerticalGroup(
@@ -261,7 +317,8 @@ public class GUI extends javax.swing.JFrame {
                     .addComponent(iterationsLabel)
                     .addComponent(iterationsField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                     .addComponent(saveButton)
-                    .addComponent(decryptButton))
+                    .addComponent(decryptButton)
+                    .addComponent(modeCheckBox))
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addGroup(menuPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                     .addComponent(jComboBox1, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
@@ -272,7 +329,9 @@ public class GUI extends javax.swing.JFrame {
                     .addComponent(widthLabel)
                     .addComponent(heightLabel)
                     .addComponent(heightField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
-                    .addComponent(animateButton))
+                    .addComponent(animateButton)
+                    .addComponent(progressBar, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(cancelButton))
                 .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
 
@@ -317,50 +376,114 @@ public class GUI extends javax.swing.JFrame {
         myPanel.setyDiff(evt.getY());
     }//GEN-LAST:event_drawingPanelMousePressed
 
+    private void drawingPanelMouseWheelMoved(java.awt.event.MouseWheelEvent evt) {//GEN-FIRST:event_drawingPanelMouseWheelMoved
+        // Every notch of the wheel zooms by 25 percent, rolling it away 
+        // from the user zooms in.
+        double factor = Math.pow(1.25, -evt.getPreciseWheelRotation());
+        myPanel.zoom(factor, evt.getX(), evt.getY());
+    }//GEN-LAST:event_drawingPanelMouseWheelMoved
+
     private void openButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_openButtonActionPerformed
         try{
             int approve = fileChooser.showOpenDialog(this);
             if (approve == JFileChooser.APPROVE_OPTION) {
                 String path = fileChooser.getSelectedFile().toString();
                 myPanel.setImagePath(path);
-                // Create image handler and image creator.
-                ImageHandler handler = new ImageHandler(path);
+                if (!myPanel.fitsHeap()){
+                    openOversizedImage();
+                    return;
+                }
+                // Create image handler and image creator, image is decoded 
+                // once for viewing, encryption and decryption.
+                ImageHandler handler = myPanel.getImageCache().get(path);
                 ImageCreator creator = new ImageCreator(
-                        handler.getPaddedPixels(), 
-                        handler.getPaddedImageLength(),
-                        handler.getPaddedImageLength());
-                myPanel.setImageToEncryptDecrypt(creator.createImage());
+                        handler.getPixelsARGB(), handler.getHeight(),
+                        handler.getWidth());
+                // Square mode shows image padded with black color, padding
+                // is painted around it, so padded copy is never made.
+                int length = 0;
+                if(myPanel.getMode() == FractalMode.SQUARE){
+                    length = Math.max(handler.getWidth(), 
+                                      handler.getHeight());
+                }
+                myPanel.setImageToEncryptDecrypt(creator.createImage(), 
+                                                 length);
+                showOpenTimes(handler);
                 // Draw image.
                 myPanel.setDrawingMode(1);
                 // Once we open file we can encrypt/decrypt.
                 encryptButton.setEnabled(true);
                 decryptButton.setEnabled(true);
             }
-        } catch (HeadlessException | IllegalArgumentException e){
+        } catch (HeadlessException | IllegalArgumentException | 
+                 IOException e){
             // Don't draw anything.
             myPanel.setDrawingMode(0);
             e.printStackTrace(System.err);
         }
     }//GEN-LAST:event_openButtonActionPerformed
+    
+    /**
+     * Shows how long decoding of the opened image took in the progress 
+     * bar, until the next task is started.
+     * @param handler handler of the opened image.
+     */
+    private void showOpenTimes(ImageHandler handler){
+        progressBar.setValue(0);
+        progressBar.setString(String.format(
+                "Decoded in %d ms, pixels copied in %d ms", 
+                handler.getDecodeTime() / 1000000, 
+                handler.getIngestTime() / 1000000));
+    }
+    
+    /**
+     * Opened image is too big for the heap, so it's not decoded and shown.
+     * It can still be encrypted and decrypted in square mode into raw image
+     * files.
+     */
+    private void openOversizedImage(){
+        myPanel.setImageToEncryptDecrypt(null);
+        myPanel.setDrawingMode(0);
+        progressBar.setString(null);
+        encryptButton.setEnabled(true);
+        decryptButton.setEnabled(true);
+        JOptionPane.showMessageDialog(this, 
+                "Image is too big to be shown, in square mode it will be "
+                + "encrypted and decrypted into raw image files.", 
+                "Image not shown", JOptionPane.INFORMATION_MESSAGE);
+    }
 
     private void encryptButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_encryptButtonActionPerformed
-        try{
-            int iterReached = myPanel.encryptImage();
-            // Write which level(iteration) we managed to reach.
-            iterationsField.setText(Integer.toString(iterReached));
-            // Set iteration reached.
-            myPanel.setIterations(iterReached);
-            // Draw encrypted/decrypted image.
-            myPanel.setDrawingMode(2);
-            myPanel.setAnimationMode(0);
-            // Allow saving and animating.
-            saveButton.setEnabled(true);
-            animateButton.setEnabled(true);
-            encrypted = true;
-        } catch (Exception e){
-            myPanel.setDrawingMode(1);
-            e.printStackTrace(System.err);
-        }
+        runInBackground(new BackgroundTask<Integer>() {
+            @Override
+            protected Integer work() throws Exception {
+                return myPanel.encryptImage();
+            }
+            
+            @Override
+            protected void finished(Integer iterReached) {
+                // Write which level(iteration) we managed to reach.
+                iterationsField.setText(Integer.toString(iterReached));
+                // Set iteration reached.
+                myPanel.setIterations(iterReached);
+                if (myPanel.getResultFile() != null){
+                    showResultFile();
+                    return;
+                }
+                // Draw encrypted/decrypted image.
+                myPanel.setDrawingMode(2);
+                myPanel.setAnimationMode(0);
+                // Allow saving and animating.
+                saveButton.setEnabled(true);
+                animateButton.setEnabled(true);
+                encrypted = true;
+            }
+            
+            @Override
+            protected void failed() {
+                myPanel.setDrawingMode(1);
+            }
+        });
     }//GEN-LAST:event_encryptButtonActionPerformed
 
     private void iterationsFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_iterationsFieldFocusLost
@@ -404,32 +527,256 @@ public class GUI extends javax.swing.JFrame {
         }
         // Create path for new file.
         path += "\\" + data[0] + "." + data[1];
-        File out = new File(path);
-        FileHandler.writeBufferedImage(myPanel.getEncryptedDecryptedImage(), "png", out);
+        final File out = new File(path);
+        // Record mode, so decryption knows how image was divided.
+        final Map<String, String> text = new HashMap<>();
+        if (encrypted){
+            text.put(FractalMode.KEY, myPanel.getMode().name());
+        }
+        final BufferedImage image = myPanel.getEncryptedDecryptedImage();
+        // Raw images are written as they are, without compression.
+        final boolean raw = RawImageFile.EXTENSION.equalsIgnoreCase(data[1]);
+        // QOI images are written as QOI, everything else as png.
+        final String format = QoiWriter.EXTENSION.equalsIgnoreCase(data[1]) ?
+                              QoiWriter.EXTENSION : "png";
+        // QOI images can't store text, and rectangular images can't be 
+        // decrypted without knowing their mode.
+        if (encrypted && format.equals(QoiWriter.EXTENSION) && 
+            myPanel.getMode() == FractalMode.RECTANGULAR){
+            JOptionPane.showMessageDialog(this, 
+                    "QOI images can't record rectangular mode, "
+                    + "save as png or raw image instead.", 
+                    "Image not saved", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        final boolean wasEncrypted = encrypted;
+        runInBackground(new BackgroundTask<Void>() {
+            @Override
+            protected Void work() {
+                if(raw){
+                    myPanel.writeRawResult(out, wasEncrypted);
+                } else {
+                    FileHandler.writeBufferedImage(image, format, out, text);
+                }
+                return null;
+            }
+        });
     }//GEN-LAST:event_saveButtonActionPerformed
 
     private void decryptButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_decryptButtonActionPerformed
-        try{
-            int iterReached = myPanel.decryptImage();
-            iterationsField.setText(Integer.toString(iterReached));
-            myPanel.setIterations(iterReached);
-            myPanel.setDrawingMode(2);
-            myPanel.setAnimationMode(1);
-            saveButton.setEnabled(true);
-            animateButton.setEnabled(true);
-            encrypted = false;
-        } catch (Exception e){
-            myPanel.setDrawingMode(1);
-            e.printStackTrace(System.err);
-        }
+        runInBackground(new BackgroundTask<Integer>() {
+            @Override
+            protected Integer work() throws Exception {
+                return myPanel.decryptImage();
+            }
+            
+            @Override
+            protected void finished(Integer iterReached) {
+                // Decryption may switch to the mode recorded in the image.
+                modeCheckBox.setSelected(
+                        myPanel.getMode() == FractalMode.RECTANGULAR);
+                iterationsField.setText(Integer.toString(iterReached));
+                myPanel.setIterations(iterReached);
+                if (myPanel.getResultFile() != null){
+                    showResultFile();
+                    return;
+                }
+                myPanel.setDrawingMode(2);
+                myPanel.setAnimationMode(1);
+                saveButton.setEnabled(true);
+                animateButton.setEnabled(true);
+                encrypted = false;
+            }
+            
+            @Override
+            protected void failed() {
+                myPanel.setDrawingMode(1);
+            }
+        });
     }//GEN-LAST:event_decryptButtonActionPerformed
 
     private void animateButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_animateButtonActionPerformed
-        myPanel.createFrames();
-        myPanel.setCurrFrame(0);
-        myPanel.setDrawingMode(3);
+        runInBackground(new BackgroundTask<Void>() {
+            @Override
+            protected Void work() throws Exception {
+                myPanel.createFrames();
+                return null;
+            }
+            
+            @Override
+            protected void finished(Void result) {
+                myPanel.setCurrFrame(0);
+                myPanel.setDrawingMode(3);
+            }
+        });
     }//GEN-LAST:event_animateButtonActionPerformed
 
+    private void modeCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_modeCheckBoxActionPerformed
+        if (modeCheckBox.isSelected()){
+            myPanel.setMode(FractalMode.RECTANGULAR);
+        } else {
+            myPanel.setMode(FractalMode.SQUARE);
+        }
+    }//GEN-LAST:event_modeCheckBoxActionPerformed
+
+    private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelButtonActionPerformed
+        if (task != null){
+            myPanel.cancel();
+            task.cancel(true);
+        }
+    }//GEN-LAST:event_cancelButtonActionPerformed
+
+    /**
+     * Tells where result of the image too big for the heap was written, it
+     * can't be shown, saved or animated. Starting image stays drawn.
+     */
+    private void showResultFile(){
+        myPanel.setDrawingMode(1);
+        JOptionPane.showMessageDialog(this, 
+                "Image is too big to be shown, result was written to "
+                + myPanel.getResultFile() + ".", 
+                "Result written to file", JOptionPane.INFORMATION_MESSAGE);
+    }
+    
+    /**
+     * Runs task in background. Buttons which start other tasks are disabled 
+     * until it stops, cancel button is enabled meanwhile.
+     * @param newTask task to run.
+     */
+    private void runInBackground(BackgroundTask<?> newTask){
+        task = newTask;
+        setBusy(true);
+        // Percentage is shown instead of the times of opening.
+        progressBar.setString(null);
+        progressBar.setValue(0);
+        // Not every task reports progress, files too big for the heap are
+        // transformed without it.
+        progressBar.setIndeterminate(true);
+        task.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName())){
+                    progressBar.setIndeterminate(false);
+                    progressBar.setValue((Integer)evt.getNewValue());
+                }
+            }
+        });
+        myPanel.setProgressListener(task);
+        // Cancel may be pressed as soon as task is started.
+        myPanel.resetCancelled();
+        task.execute();
+    }
+    
+    /**
+     * Enables or disables buttons while task runs in background.
+     * @param busy true when task is running.
+     */
+    private void setBusy(boolean busy){
+        openButton.setEnabled(!busy);
+        encryptButton.setEnabled(!busy);
+        decryptButton.setEnabled(!busy);
+        // Saving and animating need a result.
+        boolean result = myPanel.getEncryptedDecryptedImage() != null;
+        saveButton.setEnabled(!busy && result);
+        animateButton.setEnabled(!busy && result);
+        modeCheckBox.setEnabled(!busy);
+        cancelButton.setEnabled(busy);
+    }
+    
+    /**
+     * Task which runs off the event dispatch thread and reports progress of
+     * the fractal level by level. Result is handed back on the event 
+     * dispatch thread.
+     * @param <T> type of the result.
+     */
+    private abstract class BackgroundTask<T> extends SwingWorker<T, Void> 
+            implements ProgressListener {
+        // Set by whichever comes first: start of the work, or done() of a
+        // task cancelled before it started. The one which sets it frees the
+        // buttons, cancelled work may still be running after done is 
+        // called.
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        
+        /**
+         * Does the work in background.
+         * @return result.
+         * @throws Exception when work fails.
+         */
+        protected abstract T work() throws Exception;
+        
+        /**
+         * Called on event dispatch thread when work is done.
+         * @param result result of the work.
+         */
+        protected void finished(T result) {
+        }
+        
+        /**
+         * Called on event dispatch thread when work failed or was 
+         * cancelled.
+         */
+        protected void failed() {
+        }
+        
+        @Override
+        protected T doInBackground() throws Exception {
+            // Task was cancelled and done() has already freed the buttons.
+            if (!claimed.compareAndSet(false, true)){
+                return null;
+            }
+            try {
+                return work();
+            } finally {
+                // Buttons are enabled only once work really stops.
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        setBusy(false);
+                    }
+                });
+            }
+        }
+        
+        @Override
+        public void progressChanged(long done, long total) {
+            if(total > 0){
+                setProgress((int)(done * 100 / total));
+            }
+        }
+        
+        @Override
+        protected void done() {
+            // Cancelled task may be done after the next one has started.
+            boolean current = task == this;
+            if (current){
+                myPanel.setProgressListener(null);
+                task = null;
+                progressBar.setIndeterminate(false);
+            }
+            try {
+                T result = get();
+                if (current){
+                    progressBar.setValue(100);
+                }
+                finished(result);
+            } catch (CancellationException e) {
+                if (current){
+                    progressBar.setValue(0);
+                }
+                failed();
+            } catch (InterruptedException | ExecutionException e) {
+                if (current){
+                    progressBar.setValue(0);
+                }
+                failed();
+                e.printStackTrace(System.err);
+            }
+            if (isCancelled() && claimed.compareAndSet(false, true)){
+                setBusy(false);
+            }
+        }
+    }
+
     private void widthFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_widthFieldFocusLost
         try{
             int width = Integer.parseInt(widthField.getText());
@@ -488,6 +835,7 @@ public class GUI extends javax.swing.JFrame {
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton animateButton;
+    private javax.swing.JButton cancelButton;
     private javax.swing.JButton decryptButton;
     private javax.swing.JPanel drawingPanel;
     private javax.swing.JButton encryptButton;
@@ -501,7 +849,9 @@ public class GUI extends javax.swing.JFrame {
     private javax.swing.JComboBox jComboBox3;
     private javax.swing.JComboBox jComboBox4;
     private javax.swing.JPanel menuPanel;
+    private javax.swing.JCheckBox modeCheckBox;
     private javax.swing.JButton openButton;
+    private javax.swing.JProgressBar progressBar;
     private javax.swing.JButton saveButton;
     private javax.swing.JTextField widthField;
     private javax.swing.JLabel widthLabel;
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package GUI;
+
+import ImageProcessing.FrameStore;
+import java.awt.image.BufferedImage;
+
+/**
+ * Everything {@link DrawPanel} needs for painting. State is never changed,
+ * changed copy is published instead, so painting always sees one consistent
+ * state no matter which thread published it.
+ * @author Aleksandr Šmailov
+ */
+final class RenderState {
+    private final int drawingMode;
+    private final int x0;
+    private final int y0;
+    private final double zoom;
+    private final BufferedImage image;
+    private final int imageLength;
+    private final BufferedImage result;
+    private final FrameStore frames;
+    private final int currFrame;
+    
+    /**
+     * @param drawingMode drawing mode (0 - nothing, 1 - starting image, 
+     * 2 - encrypted or decrypted image, 3 - animation).
+     * @param x0 x coordinate of the origin point.
+     * @param y0 y coordinate of the origin point.
+     * @param zoom how many times images are enlarged.
+     * @param image image we want to encrypt or decrypt.
+     * @param imageLength length of the side of the black square image is 
+     * shown in, 0 when image is shown as it is.
+     * @param result encrypted/decrypted image.
+     * @param frames animation frames.
+     * @param currFrame frame of animation which is shown.
+     */
+    RenderState(int drawingMode, int x0, int y0, double zoom, 
+                BufferedImage image, int imageLength, BufferedImage result,
+                FrameStore frames, int currFrame) {
+        this.drawingMode = drawingMode;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.zoom = zoom;
+        this.image = image;
+        this.imageLength = imageLength;
+        this.result = result;
+        this.frames = frames;
+        this.currFrame = currFrame;
+    }
+    
+    RenderState withDrawingMode(int drawingMode) {
+        return new RenderState(drawingMode, x0, y0, zoom, image, imageLength,
+                               result, frames, currFrame);
+    }
+    
+    RenderState withOrigin(int x0, int y0) {
+        return new RenderState(drawingMode, x0, y0, zoom, image, imageLength,
+                               result, frames, currFrame);
+    }
+    
+    RenderState withZoom(double zoom, int x0, int y0) {
+        return new RenderState(drawingMode, x0, y0, zoom, image, imageLength,
+                               result, frames, currFrame);
+    }
+    
+    RenderState withImage(BufferedImage image, int imageLength) {
+        return new RenderState(drawingMode, x0, y0, zoom, image, imageLength,
+                               result, frames, currFrame);
+    }
+    
+    RenderState withResult(BufferedImage result) {
+        return new RenderState(drawingMode, x0, y0, zoom, image, imageLength,
+                               result, frames, currFrame);
+    }
+    
+    RenderState withFrames(FrameStore frames) {
+        return new RenderState(drawingMode, x0, y0, zoom, image, imageLength,
+                               result, frames, 0);
+    }
+    
+    RenderState withCurrFrame(int currFrame) {
+        return new RenderState(drawingMode, x0, y0, zoom, image, imageLength,
+                               result, frames, currFrame);
+    }
+    
+    /**
+     * @return state showing the next frame, first one after the last.
+     */
+    RenderState nextFrame() {
+        if(frames == null || frames.size() == 0){
+            return this;
+        }
+        return withCurrFrame((currFrame + 1) % frames.size());
+    }
+    
+    int getDrawingMode() {
+        return drawingMode;
+    }
+    
+    int getX0() {
+        return x0;
+    }
+    
+    int getY0() {
+        return y0;
+    }
+    
+    double getZoom() {
+        return zoom;
+    }
+    
+    BufferedImage getImage() {
+        return image;
+    }
+    
+    int getImageLength() {
+        return imageLength;
+    }
+    
+    BufferedImage getResult() {
+        return result;
+    }
+    
+    FrameStore getFrames() {
+        return frames;
+    }
+    
+    int getCurrFrame() {
+        return currFrame;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package GUI;
+
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Level of detail pyramid of an image for zooming and panning. Level 0 is
+ * the image itself and every next level is half the size of previous one,
+ * until the image fits into one tile. Levels are built in background. Only
+ * tiles which are visible are painted, they are cut from the level which 
+ * fits zoom best, turned into images compatible with the screen and kept 
+ * in a least recently used cache. Until tile is ready its part of the level
+ * is painted directly.
+ * @author Aleksandr Šmailov
+ */
+final class TilePyramid {
+    // Length of the side of a tile.
+    static final int TILE = 256;
+    // Number of tiles kept, 256 tiles of 256 KB each.
+    private static final int MAX_TILES = 256;
+    
+    // One thread builds levels and tiles of all pyramids.
+    private static final ExecutorService BUILDER = 
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Tile builder");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    
+    private final BufferedImage image;
+    private final Component owner;
+    // Levels which are built so far, null when not built yet.
+    private final BufferedImage[] levels;
+    private final Map<Long, BufferedImage> tiles;
+    // Tiles which are being built.
+    private final Set<Long> pending = new HashSet<>();
+    private volatile boolean disposed;
+    
+    /**
+     * Starts building levels of the pyramid.
+     * @param image image.
+     * @param owner component which is repainted when level or tile is ready.
+     */
+    TilePyramid(BufferedImage image, Component owner) {
+        this.image = image;
+        this.owner = owner;
+        int count = 1;
+        int side = Math.max(image.getWidth(), image.getHeight());
+        while(side > TILE){
+            side = (side + 1) / 2;
+            count++;
+        }
+        levels = new BufferedImage[count];
+        levels[0] = image;
+        tiles = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, BufferedImage> eldest) {
+                return size() > MAX_TILES;
+            }
+        };
+        if(count > 1){
+            BUILDER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    buildLevels();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Builds levels one by one, each from the previous one.
+     */
+    private void buildLevels(){
+        for(int i = 1; i < levels.length && !disposed; i++){
+            BufferedImage prev = getLevel(i - 1);
+            int w = Math.max(1, (prev.getWidth() + 1) / 2);
+            int h = Math.max(1, (prev.getHeight() + 1) / 2);
+            BufferedImage level = new BufferedImage(
+                    w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g = level.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                               RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(prev, 0, 0, w, h, null);
+            g.dispose();
+            synchronized(this){
+                levels[i] = level;
+            }
+            owner.repaint();
+        }
+    }
+    
+    /**
+     * @param i level.
+     * @return level image or null when it's not built yet.
+     */
+    private synchronized BufferedImage getLevel(int i){
+        return levels[i];
+    }
+    
+    /**
+     * Paints visible part of the image.
+     * @param g graphics, its clip tells which part is visible.
+     * @param x x coordinate of image's upper left corner.
+     * @param y y coordinate of image's upper left corner.
+     * @param zoom how many times image is enlarged.
+     */
+    void paint(Graphics2D g, int x, int y, double zoom){
+        // Coarsest level whose pixels are not smaller than screen pixels.
+        int wanted = 0;
+        while(wanted + 1 < levels.length && (1 << (wanted + 1)) * zoom <= 1){
+            wanted++;
+        }
+        // Finer level is used until wanted one is built.
+        int level = wanted;
+        while(getLevel(level) == null){
+            level--;
+        }
+        BufferedImage source = getLevel(level);
+        // Size of one pixel of the level on the screen.
+        double scale = zoom * (1 << level);
+        int lw = source.getWidth();
+        int lh = source.getHeight();
+        Rectangle clip = g.getClipBounds();
+        if(clip == null){
+            clip = new Rectangle(0, 0, owner.getWidth(), owner.getHeight());
+        }
+        // Visible tiles.
+        int tx0 = Math.max(0, (int)Math.floor((clip.x - x) / scale) / TILE);
+        int ty0 = Math.max(0, (int)Math.floor((clip.y - y) / scale) / TILE);
+        int tx1 = Math.min((lw - 1) / TILE, 
+                           (int)Math.floor((clip.x + clip.width - x) / scale) 
+                           / TILE);
+        int ty1 = Math.min((lh - 1) / TILE, 
+                           (int)Math.floor((clip.y + clip.height - y) / scale)
+                           / TILE);
+        // Tiles are built only for the wanted level and only when they fit
+        // into the cache, otherwise level is painted directly.
+        long visible = (long)(tx1 - tx0 + 1) * (ty1 - ty0 + 1);
+        boolean useTiles = level == wanted && visible <= MAX_TILES / 2;
+        for(int ty = ty0; ty <= ty1; ty++){
+            for(int tx = tx0; tx <= tx1; tx++){
+                int sx1 = tx * TILE;
+                int sy1 = ty * TILE;
+                int sx2 = Math.min(sx1 + TILE, lw);
+                int sy2 = Math.min(sy1 + TILE, lh);
+                int dx1 = x + (int)Math.round(sx1 * scale);
+                int dy1 = y + (int)Math.round(sy1 * scale);
+                int dx2 = x + (int)Math.round(sx2 * scale);
+                int dy2 = y + (int)Math.round(sy2 * scale);
+                BufferedImage tile = null;
+                if(useTiles){
+                    tile = getTile(level, tx, ty);
+                }
+                if(tile != null){
+                    g.drawImage(tile, dx1, dy1, dx2, dy2, 
+                                0, 0, sx2 - sx1, sy2 - sy1, null);
+                } else {
+                    g.drawImage(source, dx1, dy1, dx2, dy2, 
+                                sx1, sy1, sx2, sy2, null);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns tile from the cache, or asks for it to be built.
+     * @param level level of the tile.
+     * @param tx column of the tile.
+     * @param ty row of the tile.
+     * @return tile or null when it's not built yet.
+     */
+    private BufferedImage getTile(final int level, final int tx, 
+                                  final int ty){
+        final Long key = ((long)level << 48) | ((long)ty << 24) | tx;
+        synchronized(this){
+            BufferedImage tile = tiles.get(key);
+            if(tile != null || !pending.add(key)){
+                return tile;
+            }
+        }
+        BUILDER.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(disposed){
+                    return;
+                }
+                BufferedImage tile = buildTile(getLevel(level), tx, ty);
+                synchronized(TilePyramid.this){
+                    pending.remove(key);
+                    tiles.put(key, tile);
+                }
+                owner.repaint();
+            }
+        });
+        return null;
+    }
+    
+    /**
+     * Copies tile of the level into an image compatible with the screen, so
+     * it can be drawn fast.
+     * @param level level image.
+     * @param tx column of the tile.
+     * @param ty row of the tile.
+     * @return tile.
+     */
+    private BufferedImage buildTile(BufferedImage level, int tx, int ty){
+        int sx = tx * TILE;
+        int sy = ty * TILE;
+        int w = Math.min(TILE, level.getWidth() - sx);
+        int h = Math.min(TILE, level.getHeight() - sy);
+        BufferedImage tile;
+        GraphicsConfiguration gc = owner.getGraphicsConfiguration();
+        if(gc == null && !GraphicsEnvironment.isHeadless()){
+            gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                    .getDefaultScreenDevice().getDefaultConfiguration();
+        }
+        if(gc != null){
+            tile = gc.createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+        } else {
+            tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        Graphics2D g = tile.createGraphics();
+        g.drawImage(level, 0, 0, w, h, sx, sy, sx + w, sy + h, null);
+        g.dispose();
+        return tile;
+    }
+    
+    /**
+     * Stops building and drops all tiles.
+     */
+    void dispose(){
+        disposed = true;
+        synchronized(this){
+            tiles.clear();
+            pending.clear();
+        }
+    }
+    
+    /**
+     * @return image of the pyramid.
+     */
+    BufferedImage getImage(){
+        return image;
+    }
+}
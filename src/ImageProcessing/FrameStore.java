@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ImageProcessing;
+
+import FileProcessing.MappedPixelFile;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps frames of the animation as raw ARGB pixels instead of images. 
+ * Frames are kept in the heap until memory budget is used up, later frames
+ * are spilled to memory mapped temporary files. Frame is turned into 
+ * {@link BufferedImage} only when it's asked for, and only the last one is
+ * kept. Methods are synchronized, frames may be added on one thread and 
+ * painted on another.
+ * <p>
+ * Frames are not delta encoded: every level moves almost every pixel, so 
+ * neighbouring frames have almost nothing in common at the same position.
+ * @author Aleksandr Šmailov
+ */
+public class FrameStore {
+    private final long memoryBudget;
+    private long memoryUsed;
+    private final List<Frame> frames = new ArrayList<>();
+    
+    // Last decoded frame.
+    private int decodedIndex = -1;
+    private BufferedImage decodedImage;
+    
+    /**
+     * Pixels of one frame, either in the heap or in a mapped file.
+     */
+    private static class Frame {
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+        private final MappedPixelFile file;
+        
+        Frame(int width, int height, int[] pixels, MappedPixelFile file) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+            this.file = file;
+        }
+    }
+    
+    /**
+     * @param memoryBudget how many bytes of the heap frames may take.
+     * @throws IllegalArgumentException when budget is negative.
+     */
+    public FrameStore(long memoryBudget) throws IllegalArgumentException {
+        if(memoryBudget < 0){
+            String err = "Memory budget can't be negative!";
+            throw new IllegalArgumentException(err);
+        }
+        this.memoryBudget = memoryBudget;
+    }
+    
+    /**
+     * Adds copy of the image as the next frame.
+     * @param image image.
+     * @throws IOException when frame doesn't fit into the budget and can't 
+     * be spilled to a file.
+     */
+    public synchronized void add(BufferedImage image) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        add(pixels, width, width, height);
+    }
+    
+    /**
+     * Adds copy of the upper left part of the image as the next frame, so
+     * frame can be cropped while it's added.
+     * @param pixels pixels of the image, they are not kept.
+     * @param stride width of the image in pixels array.
+     * @param width width of the frame.
+     * @param height height of the frame.
+     * @throws IOException when frame doesn't fit into the budget and can't 
+     * be spilled to a file.
+     * @throws IllegalArgumentException when frame is not inside the image.
+     */
+    public synchronized void add(int[] pixels, int stride, int width, 
+                                 int height) 
+            throws IOException, IllegalArgumentException {
+        if(width <= 0 || height <= 0 || width > stride || 
+           (long)stride * (height - 1) + width > pixels.length){
+            String err = "Frame must be inside the image!";
+            throw new IllegalArgumentException(err);
+        }
+        long bytes = (long)width * height * Integer.BYTES;
+        if(memoryUsed + bytes <= memoryBudget){
+            int[] copy = new int[width * height];
+            for(int i = 0; i < height; i++){
+                System.arraycopy(pixels, i * stride, copy, i * width, width);
+            }
+            memoryUsed += bytes;
+            frames.add(new Frame(width, height, copy, null));
+        } else {
+            MappedPixelFile file = MappedPixelFile.createTemp(width, height);
+            try {
+                for(int i = 0; i < height; i++){
+                    file.put((long)i * width, pixels, i * stride, width);
+                }
+            } catch (RuntimeException e){
+                file.close();
+                throw e;
+            }
+            frames.add(new Frame(width, height, null, file));
+        }
+    }
+    
+    /**
+     * Returns frame as an image. Image is decoded from pixels unless it's the
+     * same frame as the last time.
+     * @param index index of the frame.
+     * @return image of the frame or null when there is no such frame, for 
+     * example after store was cleared.
+     */
+    public synchronized BufferedImage getImage(int index) {
+        if(index < 0 || index >= frames.size()){
+            return null;
+        }
+        if(index != decodedIndex){
+            Frame frame = frames.get(index);
+            int[] pixels = frame.pixels;
+            if(pixels == null){
+                pixels = new int[frame.width * frame.height];
+                frame.file.get(0, pixels, 0, pixels.length);
+            }
+            ImageCreator creator = new ImageCreator(pixels, frame.height, 
+                                                    frame.width);
+            decodedImage = creator.createImage();
+            decodedIndex = index;
+        }
+        return decodedImage;
+    }
+    
+    /**
+     * Removes all frames, files of spilled ones are closed and deleted.
+     */
+    public synchronized void clear() {
+        for(Frame frame : frames){
+            if(frame.file != null){
+                // Temporary file is deleted when it's closed.
+                frame.file.close();
+            }
+        }
+        frames.clear();
+        memoryUsed = 0;
+        decodedIndex = -1;
+        decodedImage = null;
+    }
+    
+    /**
+     * @return number of frames.
+     */
+    public synchronized int size() {
+        return frames.size();
+    }
+    
+    /**
+     * @return number of frames which were spilled to files.
+     */
+    public synchronized int getSpilledCount() {
+        int count = 0;
+        for(Frame frame : frames){
+            if(frame.file != null){
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * @return how many bytes of the heap frames take.
+     */
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+    
+    /**
+     * @return how many bytes of the heap frames may take.
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ImageProcessing;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded images, so the same file is decoded only once. Images 
+ * are found by absolute path and are decoded again when modification time
+ * or size of the file changed. Recently used images are kept within memory
+ * budget, older ones are only softly reachable and stay until garbage 
+ * collector needs memory. Pixels of cached images are shared, so they must 
+ * never be changed.
+ * @author Aleksandr Šmailov
+ */
+public class ImageCache {
+    
+    private final long memoryBudget;
+    // Images in the order of use, the least recently used first.
+    private final LinkedHashMap<String, Entry> entries = 
+            new LinkedHashMap<>(16, 0.75f, true);
+    // Images evicted from the budget.
+    private final Map<String, SoftReference<Entry>> evicted = 
+            new HashMap<>();
+    private long memoryUsed;
+    private long hits;
+    private long misses;
+    
+    /**
+     * @param memoryBudget how many bytes of pixels are kept strongly 
+     * reachable.
+     * @throws IllegalArgumentException when budget is negative.
+     */
+    public ImageCache(long memoryBudget) {
+        if(memoryBudget < 0){
+            String err = "Memory budget can't be negative!";
+            throw new IllegalArgumentException(err);
+        }
+        this.memoryBudget = memoryBudget;
+    }
+    
+    /**
+     * Returns decoded image only when it's cached and file hasn't changed 
+     * since it was decoded, file is never decoded.
+     * @param path path to picture.
+     * @return image handler or null, its pixels must not be changed.
+     */
+    public ImageHandler find(String path) {
+        File file = new File(path);
+        String key = file.getAbsolutePath();
+        long modified = file.lastModified();
+        long size = file.length();
+        synchronized(this){
+            Entry entry = entries.get(key);
+            if(entry == null){
+                SoftReference<Entry> reference = evicted.get(key);
+                if(reference != null){
+                    entry = reference.get();
+                }
+            }
+            if(entry != null && entry.modified == modified && 
+               entry.size == size){
+                return entry.handler;
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Returns decoded image, file is decoded only when it isn't cached or 
+     * changed since it was decoded. Images which failed to decode aren't 
+     * cached.
+     * @param path path to picture.
+     * @return image handler, its pixels must not be changed.
+     */
+    public ImageHandler get(String path) {
+        File file = new File(path);
+        String key = file.getAbsolutePath();
+        long modified = file.lastModified();
+        long size = file.length();
+        synchronized(this){
+            Entry entry = entries.get(key);
+            if(entry == null){
+                SoftReference<Entry> reference = evicted.remove(key);
+                if(reference != null && reference.get() != null){
+                    entry = reference.get();
+                    put(entry);
+                }
+            }
+            if(entry != null && entry.modified == modified && 
+               entry.size == size){
+                hits++;
+                return entry.handler;
+            }
+            if(entry != null){
+                remove(key);
+            }
+            misses++;
+        }
+        // Decode without holding the lock.
+        ImageHandler handler = new ImageHandler(path);
+        if(handler.getPixelsARGB() != null){
+            synchronized(this){
+                remove(key);
+                put(new Entry(key, modified, size, handler));
+            }
+        }
+        return handler;
+    }
+    
+    /**
+     * Adds image as the most recently used one and evicts the least 
+     * recently used ones which don't fit in the budget.
+     * @param entry cached image.
+     */
+    private void put(Entry entry) {
+        entries.put(entry.key, entry);
+        memoryUsed += entry.bytes;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while(memoryUsed > memoryBudget && iterator.hasNext()){
+            Entry eldest = iterator.next();
+            iterator.remove();
+            memoryUsed -= eldest.bytes;
+            evicted.put(eldest.key, new SoftReference<>(eldest));
+        }
+        // Forget images collected by garbage collector.
+        Iterator<SoftReference<Entry>> references = 
+                evicted.values().iterator();
+        while(references.hasNext()){
+            if(references.next().get() == null){
+                references.remove();
+            }
+        }
+    }
+    
+    /**
+     * Removes image from the cache.
+     * @param key absolute path.
+     */
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if(entry != null){
+            memoryUsed -= entry.bytes;
+        }
+        evicted.remove(key);
+    }
+    
+    /**
+     * Removes all images.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        evicted.clear();
+        memoryUsed = 0;
+    }
+    
+    /**
+     * @return how many times image was found in the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    /**
+     * @return how many times image had to be decoded.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * @return bytes of pixels of images within the budget.
+     */
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+    
+    /**
+     * @return how many bytes of pixels are kept strongly reachable.
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+    
+    /**
+     * @return number of images within the budget.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Decoded image with the state of its file.
+     */
+    private static class Entry {
+        final String key;
+        final long modified;
+        final long size;
+        final ImageHandler handler;
+        // Pixels and padded pixels, which are made for non square images.
+        final long bytes;
+
+        Entry(String key, long modified, long size, ImageHandler handler) {
+            this.key = key;
+            this.modified = modified;
+            this.size = size;
+            this.handler = handler;
+            long width = handler.getWidth();
+            long height = handler.getHeight();
+            long length = Math.max(width, height);
+            long padded = width == height ? 0 : length * length;
+            this.bytes = (width * height + padded) * Integer.BYTES;
+        }
+    }
+}
@@ -25,72 +25,80 @@
 package ImageProcessing;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 
 /**
  * @author Aleksandr Šmailov
  */
 public class ImageCreator {
+    // Masks of TYPE_INT_ARGB pixels.
+    private static final int[] MASKS = {
+        0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000
+    };
+    private static final ColorModel ARGB = new DirectColorModel(32, 
+            MASKS[0], MASKS[1], MASKS[2], MASKS[3]);
+    
     private final int height;
     private final int width;
     private final int[] pixels;
+    private final boolean copyPixels;
     
     /**
+     * Created images share the array of pixels, so changes of the array are
+     * seen in them.
      * @param pixels array of pixels in the default RGB color model (TYPE_INT_ARGB) 
      * and default sRGB colorspace.
      * @param height height of the image.
      * @param width width of the image.
      */
     public ImageCreator(int[] pixels, int height, int width) {
+        this(pixels, height, width, false);
+    }
+    
+    /**
+     * @param pixels array of pixels in the default RGB color model 
+     * (TYPE_INT_ARGB) and default sRGB colorspace.
+     * @param height height of the image.
+     * @param width width of the image.
+     * @param copyPixels true to give every created image its own copy of 
+     * pixels, when the array may be changed later.
+     * @throws IllegalArgumentException when there are less pixels than image
+     * needs.
+     */
+    public ImageCreator(int[] pixels, int height, int width, 
+                        boolean copyPixels) {
+        if(width <= 0 || height <= 0 || 
+           pixels.length < (long)width * height){
+            String err = "Array of pixels is smaller than the image!";
+            throw new IllegalArgumentException(err);
+        }
         this.pixels = pixels;
         this.height = height;
         this.width = width;
+        this.copyPixels = copyPixels;
     }
     
     /**
-     * Creates an image from pixels array.
+     * Creates an image from pixels array. Image of TYPE_INT_ARGB is built 
+     * around the array itself unless pixels are copied.
      * @return BufferedImage.
      */
     public BufferedImage createImage(){
-        int[] pixelsForWriting;
-        pixelsForWriting = handlePixels(pixels, height, width);
-        BufferedImage image;
-        image = getImageFromArray(pixelsForWriting, height, width);
-        return image;
-    }
-    
-    /**
-     * Creates array of pixels which are suitable for 
-     * {@link #getImageFromArray(int[], int, int) getImageFromArray} method.
-     * @return array of pixels.
-     */
-    private int[] handlePixels(int[] pixels, int height, int width){
-        int count = 0;
-        int[] pixelsForWriting = new int[height * width * 4];
-        for(int i=0; i<height; i++){
-            for(int j=0; j<width; j++){
-                // Take ARGB value.
-                int rgb = pixels[i * width + j];
-                // Parse the values from int.
-                int alpha = (rgb >> 24) & 0xff;
-                int red   = (rgb >> 16) & 0xff;
-                int green = (rgb >>  8) & 0xff;
-                int blue  = (rgb) & 0xff;
-                // Add values to the array.
-                pixelsForWriting[count] = red;
-                count++;
-                pixelsForWriting[count] = green;
-                count++;
-                pixelsForWriting[count] = blue;
-                count++;
-                pixelsForWriting[count] = alpha;
-                count++;
-            }
+        int[] data = pixels;
+        if(copyPixels){
+            data = Arrays.copyOf(pixels, width * height);
         }
-        return pixelsForWriting;
+        return getImageFromArray(data, width, height);
     }
     
     /**
-     * Creates {@link BufferedImage} from pixels array.
+     * Creates {@link BufferedImage} which stores its pixels in the array.
      * @param pixels pixels array.
      * @param width width of the image.
      * @param height height of the image.
@@ -98,12 +106,20 @@ public class ImageCreator {
      */
     private static BufferedImage getImageFromArray(int[] pixels, int width, 
                                                    int height) {
-        // Create buffered image.
-        BufferedImage image = new BufferedImage(width, height, 
-                                                BufferedImage.TYPE_INT_ARGB);
-        // Set image's pixels.
-        image.getRaster().setPixels(0, 0, width, height, pixels);
-        // Return newly created image.
-        return image;
+        DataBufferInt buffer = new DataBufferInt(pixels, width * height);
+        SinglePixelPackedSampleModel model = new SinglePixelPackedSampleModel(
+                DataBufferInt.TYPE_INT, width, height, MASKS);
+        WritableRaster raster = Raster.createWritableRaster(model, buffer, 
+                                                            null);
+        // Same color model and raster as TYPE_INT_ARGB images have, so 
+        // Java2D recognizes the type.
+        return new BufferedImage(ARGB, raster, false, null);
+    }
+    
+    /**
+     * @return true if every created image gets its own copy of pixels.
+     */
+    public boolean isCopyPixels() {
+        return copyPixels;
     }
 }
@@ -24,11 +24,36 @@
 
 package ImageProcessing;
 
+import FileProcessing.MappedPixelFile;
+import FileProcessing.PngReader;
+import FileProcessing.QoiReader;
+import FileProcessing.RawImageFile;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.*;
 import static java.lang.Math.round;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
 
 /**
  *
@@ -36,6 +61,11 @@ import javax.imageio.ImageIO;
  */
 public class ImageHandler {
     
+    // Images with at least that many pixels are converted in parallel.
+    private static final int PARALLEL_THRESHOLD = 1 << 20;
+    // Minimum number of pixels converted by one task.
+    private static final int MIN_TASK_PIXELS = 1 << 16;
+    
     private BufferedImage  image;
     private int width;
     private int height;
@@ -44,33 +74,329 @@ public class ImageHandler {
     private int[] paddedPixels;
     private int paddedImageLength;
     
+    // Time spent decoding the file and copying decoded pixels, nanoseconds.
+    private long decodeTime;
+    private long ingestTime;
+    
+    // Metadata read with the image, so later runs don't read the file.
+    // Text entries of png images.
+    private Map<String, String> text = Collections.emptyMap();
+    // Mode and size before padding recorded in the header of raw image.
+    private int recordedMode = RawImageFile.NO_MODE;
+    private int unpaddedWidth;
+    private int unpaddedHeight;
+    
     /**
      * Reads an image and creates array of 
-     * @param file path to picture.
+     * @param file path to picture, raw images (see {@link RawImageFile}) 
+     * are read as stored, padded ones aren't cropped. Png images supported 
+     * by {@link PngReader} and QOI images are decoded straight into the 
+     * array of pixels. Text entries of png images and header of raw images
+     * are read as well.
      */
     public ImageHandler(String file) {
         try {
             // Open file, get width, height.
             File input = new File(file);
+            if(RawImageFile.isRawImage(input)){
+                readRaw(input);
+                return;
+            }
+            long start = System.nanoTime();
+            PngReader png = PngReader.open(input);
+            if(png != null){
+                try {
+                    width = png.getWidth();
+                    height = png.getHeight();
+                    pixels = new int[width * height];
+                    png.read(pixels, 0, width);
+                } finally {
+                    png.close();
+                }
+                // Nothing is copied after decoding.
+                decodeTime = System.nanoTime() - start;
+                text = readTextEntries(file);
+                return;
+            }
+            QoiReader qoi = QoiReader.open(input);
+            if(qoi != null){
+                try {
+                    width = qoi.getWidth();
+                    height = qoi.getHeight();
+                    pixels = new int[width * height];
+                    qoi.read(pixels, 0, width);
+                } finally {
+                    qoi.close();
+                }
+                decodeTime = System.nanoTime() - start;
+                return;
+            }
             image = ImageIO.read(input);
+            long decoded = System.nanoTime();
             width = image.getWidth();
             height = image.getHeight();
-            
-            int size = width * height;
-            pixels = new int[size];
-            // Copy pixel data from image.
-            int count = 0;
-            for(int i=0; i<height; i++){
-                for(int j=0; j<width; j++){
-                    pixels[count] = image.getRGB(j, i);
-                    count++;
-                }
-             }
+            // Copy pixel data from image, pixels are kept only once and 
+            // image is made around them when it's needed.
+            pixels = readPixels(image);
+            image = null;
+            ingestTime = System.nanoTime() - decoded;
+            decodeTime = decoded - start;
+            text = readTextEntries(file);
         } catch (Exception e) {
             e.printStackTrace(System.err);
         }
     }
     
+    /**
+     * Creates handler without pixels, see {@link #readHeader(String)}.
+     */
+    private ImageHandler() {
+    }
+    
+    /**
+     * Reads size and metadata of an image without decoding it, so it can be
+     * decided how the image is processed before it's loaded into the heap.
+     * Raw images have the size they are stored with, as when they are 
+     * decoded.
+     * @param file path to picture.
+     * @return handler whose arrays of pixels are null.
+     * @throws IOException when image can't be read or isn't supported.
+     */
+    public static ImageHandler readHeader(String file) throws IOException {
+        File input = new File(file);
+        ImageHandler header = new ImageHandler();
+        if(RawImageFile.isRawImage(input)){
+            RawImageFile raw = RawImageFile.open(input, false);
+            try {
+                header.width = raw.getPixels().getWidth();
+                header.height = raw.getPixels().getHeight();
+                header.recordedMode = raw.getMode();
+                if(raw.getPaddedLength() != 0){
+                    header.unpaddedWidth = raw.getWidth();
+                    header.unpaddedHeight = raw.getHeight();
+                }
+            } finally {
+                raw.close();
+            }
+            return header;
+        }
+        QoiReader qoi = QoiReader.open(input);
+        if(qoi != null){
+            try {
+                header.width = qoi.getWidth();
+                header.height = qoi.getHeight();
+            } finally {
+                qoi.close();
+            }
+            return header;
+        }
+        ImageInputStream stream = ImageIO.createImageInputStream(input);
+        if(stream == null){
+            throw new IOException("Can't open " + file);
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if(!readers.hasNext()){
+                throw new IOException("Unsupported image format: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                header.width = reader.getWidth(0);
+                header.height = reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            stream.close();
+        }
+        header.text = readTextEntries(file);
+        return header;
+    }
+    
+    /**
+     * Maps raw image and copies its pixels in one bulk copy, image shares 
+     * the array of pixels.
+     * @param input raw image file.
+     * @throws IOException when file can't be mapped.
+     */
+    private void readRaw(File input) throws IOException {
+        long start = System.nanoTime();
+        RawImageFile raw = RawImageFile.open(input, false);
+        try {
+            MappedPixelFile mapped = raw.getPixels();
+            long opened = System.nanoTime();
+            width = mapped.getWidth();
+            height = mapped.getHeight();
+            pixels = new int[width * height];
+            mapped.get(0, pixels, 0, pixels.length);
+            image = new ImageCreator(pixels, height, width).createImage();
+            ingestTime = System.nanoTime() - opened;
+            decodeTime = opened - start;
+            recordedMode = raw.getMode();
+            if(raw.getPaddedLength() != 0){
+                unpaddedWidth = raw.getWidth();
+                unpaddedHeight = raw.getHeight();
+            }
+        } finally {
+            raw.close();
+        }
+    }
+    
+    /**
+     * Copies pixels of the image in the default RGB color model, row by row.
+     * Pixels are copied straight from the image's data buffer when they are
+     * stored as packed ints or 8 bit sRGB components, other images are 
+     * converted by Java2D. Large images are converted in parallel.
+     * @param image image.
+     * @return array of pixels in the default RGB color model.
+     */
+    public static int[] readPixels(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] result = new int[w * h];
+        if(result.length < PARALLEL_THRESHOLD){
+            readRows(image, result, 0, h);
+        } else {
+            int grain = Math.max(1, MIN_TASK_PIXELS / w);
+            ForkJoinPool.commonPool().invoke(
+                    new ReadTask(image, result, 0, h, grain));
+        }
+        return result;
+    }
+    
+    /**
+     * Copies rows of the image in the default RGB color model.
+     * @param image image.
+     * @param result array to copy to, row y starts at y * width.
+     * @param from first row.
+     * @param to row after the last one.
+     */
+    private static void readRows(BufferedImage image, int[] result, 
+                                 int from, int to) {
+        int w = image.getWidth();
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel model = raster.getSampleModel();
+        ColorModel colors = image.getColorModel();
+        // Raster of subimage is translated from its data buffer.
+        int tx = -raster.getSampleModelTranslateX();
+        int ty = -raster.getSampleModelTranslateY();
+        int type = image.getType();
+        if((type == BufferedImage.TYPE_INT_ARGB || 
+            type == BufferedImage.TYPE_INT_RGB) && 
+           buffer instanceof DataBufferInt && 
+           model instanceof SinglePixelPackedSampleModel){
+            int[] data = ((DataBufferInt)buffer).getData();
+            int stride = ((SinglePixelPackedSampleModel)model)
+                    .getScanlineStride();
+            int offset = buffer.getOffset() + ty * stride + tx;
+            // Opaque images keep garbage in the unused alpha byte.
+            int alpha = type == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+            for(int y = from; y < to; y++){
+                int src = offset + y * stride;
+                int dst = y * w;
+                if(alpha == 0){
+                    System.arraycopy(data, src, result, dst, w);
+                } else {
+                    for(int x = 0; x < w; x++){
+                        result[dst + x] = data[src + x] | alpha;
+                    }
+                }
+            }
+        } else if(isByteSRGB(colors, model, buffer)){
+            byte[] data = ((DataBufferByte)buffer).getData();
+            PixelInterleavedSampleModel interleaved = 
+                    (PixelInterleavedSampleModel)model;
+            int pixelStride = interleaved.getPixelStride();
+            int stride = interleaved.getScanlineStride();
+            int[] bands = interleaved.getBandOffsets();
+            int offset = buffer.getOffset() + ty * stride + tx * pixelStride;
+            int r = bands[0];
+            int g = bands[1];
+            int b = bands[2];
+            int a = colors.hasAlpha() ? bands[3] : -1;
+            for(int y = from; y < to; y++){
+                int src = offset + y * stride;
+                int dst = y * w;
+                for(int x = 0; x < w; x++, src += pixelStride){
+                    int alpha = a < 0 ? 0xFF : data[src + a] & 0xFF;
+                    result[dst + x] = alpha << 24 | 
+                                      (data[src + r] & 0xFF) << 16 |
+                                      (data[src + g] & 0xFF) << 8 |
+                                      (data[src + b] & 0xFF);
+                }
+            }
+        } else {
+            image.getRGB(0, from, w, to - from, result, from * w, w);
+        }
+    }
+    
+    /**
+     * Checks if pixels are stored as interleaved, not premultiplied 8 bit 
+     * sRGB components in one array, as decoded jpeg and png images are.
+     * @param colors color model.
+     * @param model sample model.
+     * @param buffer data buffer.
+     * @return true if components can be copied without conversion.
+     */
+    private static boolean isByteSRGB(ColorModel colors, SampleModel model,
+                                      DataBuffer buffer) {
+        if(!(colors instanceof ComponentColorModel) || 
+           !(model instanceof PixelInterleavedSampleModel) ||
+           !(buffer instanceof DataBufferByte) || 
+           buffer.getNumBanks() != 1 ||
+           !colors.getColorSpace().isCS_sRGB() || 
+           colors.isAlphaPremultiplied()){
+            return false;
+        }
+        int components = colors.getNumComponents();
+        if(components != (colors.hasAlpha() ? 4 : 3) || 
+           model.getNumBands() != components){
+            return false;
+        }
+        for(int i = 0; i < components; i++){
+            if(colors.getComponentSize(i) != 8){
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Copies rows of the image splitting them in halves until there are
+     * few enough of them.
+     */
+    private static class ReadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final BufferedImage image;
+        private final int[] result;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        ReadTask(BufferedImage image, int[] result, int from, int to, 
+                 int grain) {
+            this.image = image;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= grain){
+                readRows(image, result, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ReadTask(image, result, from, middle, grain),
+                      new ReadTask(image, result, middle, to, grain));
+        }
+    }
+    
     /**
      * @return array of grayscale pixel values.
      */
@@ -95,15 +421,19 @@ public class ImageHandler {
         return grayValues;
     }
     /**
-     * Pads image with black color so we get square image.
+     * Pads image with black color so we get square image. Padded pixels are
+     * made once and shared by later calls, so they must not be changed.
      * @return padded image's pixels.
      */
-    public int[] getPaddedPixels(){
+    public synchronized int[] getPaddedPixels(){
         // If it's square already simply return pixels.
         if(width == height){
             paddedImageLength = width;
             return pixels;
         }
+        if(paddedPixels != null){
+            return paddedPixels;
+        }
         int paddedSize;
         // Set square length.
         if(width > height){
@@ -125,6 +455,257 @@ public class ImageHandler {
         return paddedPixels;
     }
     
+    /**
+     * Reads an image band of rows by band of rows into a temporary memory
+     * mapped file and pads it with black color, so whole image is never 
+     * loaded into the heap. Square raw images are mapped read only as they 
+     * are, without copying.
+     * @param file path to picture.
+     * @param bandRows maximum number of rows read at once.
+     * @return padded image's pixels in mapped file.
+     * @throws IOException when image can't be read or file can't be created.
+     */
+    public static MappedPixelFile readPaddedPixels(String file, int bandRows)
+            throws IOException {
+        if(RawImageFile.isRawImage(new File(file))){
+            return readPaddedRaw(new File(file));
+        }
+        PngReader png = PngReader.open(new File(file));
+        if(png != null){
+            try {
+                return readPaddedPng(png);
+            } finally {
+                png.close();
+            }
+        }
+        QoiReader qoi = QoiReader.open(new File(file));
+        if(qoi != null){
+            try {
+                return readPaddedQoi(qoi);
+            } finally {
+                qoi.close();
+            }
+        }
+        ImageInputStream stream = ImageIO.createImageInputStream(
+                new File(file));
+        if(stream == null){
+            throw new IOException("Can't open " + file);
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if(!readers.hasNext()){
+                throw new IOException("Unsupported image format: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int length = Math.max(width, height);
+                bandRows = Math.max(1, Math.min(bandRows, height));
+                MappedPixelFile padded = MappedPixelFile.createTemp(length, 
+                                                                    length);
+                try {
+                    int[] band = new int[width * bandRows];
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    for(int y = 0; y < height; y += bandRows){
+                        int rows = Math.min(bandRows, height - y);
+                        param.setSourceRegion(
+                                new Rectangle(0, y, width, rows));
+                        BufferedImage part = reader.read(0, param);
+                        readRows(part, band, 0, rows);
+                        for(int i = 0; i < rows; i++){
+                            padded.put((long)(y + i) * length, band, 
+                                       i * width, width);
+                        }
+                    }
+                    padBorders(padded, width, height);
+                    return padded;
+                } catch (IOException | RuntimeException e){
+                    // Temporary file is deleted when it's closed.
+                    padded.close();
+                    throw e;
+                }
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+    
+    /**
+     * Decodes png image row by row straight into a temporary memory mapped
+     * file and pads it with black color.
+     * @param png opened png image.
+     * @return padded image's pixels in mapped file.
+     * @throws IOException when image can't be read or file can't be created.
+     */
+    private static MappedPixelFile readPaddedPng(PngReader png) 
+            throws IOException {
+        int width = png.getWidth();
+        int height = png.getHeight();
+        int length = Math.max(width, height);
+        MappedPixelFile padded = MappedPixelFile.createTemp(length, length);
+        try {
+            png.read(padded, 0, length);
+            padBorders(padded, width, height);
+            return padded;
+        } catch (IOException | RuntimeException e){
+            padded.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Decodes QOI image row by row straight into a temporary memory mapped
+     * file and pads it with black color.
+     * @param qoi opened QOI image.
+     * @return padded image's pixels in mapped file.
+     * @throws IOException when image can't be read or file can't be created.
+     */
+    private static MappedPixelFile readPaddedQoi(QoiReader qoi) 
+            throws IOException {
+        int length = Math.max(qoi.getWidth(), qoi.getHeight());
+        MappedPixelFile padded = MappedPixelFile.createTemp(length, length);
+        try {
+            qoi.read(padded, 0, length);
+            padBorders(padded, qoi.getWidth(), qoi.getHeight());
+            return padded;
+        } catch (IOException | RuntimeException e){
+            padded.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Fills part of the padded image outside of the image with black color.
+     * @param padded padded image.
+     * @param width width of the image.
+     * @param height height of the image.
+     */
+    private static void padBorders(MappedPixelFile padded, int width, 
+                                   int height){
+        int length = padded.getWidth();
+        int[] black = new int[length];
+        Arrays.fill(black, -16777216);
+        for(int y = 0; y < height; y++){
+            padded.put((long)y * length + width, black, 0, length - width);
+        }
+        for(int y = height; y < length; y++){
+            padded.put((long)y * length, black, 0, length);
+        }
+    }
+    
+    /**
+     * Maps raw image, non square one is padded into a temporary file.
+     * @param file raw image file.
+     * @return padded image's pixels in mapped file.
+     * @throws IOException when file can't be mapped.
+     */
+    private static MappedPixelFile readPaddedRaw(File file) 
+            throws IOException {
+        RawImageFile raw = RawImageFile.open(file, false);
+        MappedPixelFile mapped = raw.getPixels();
+        int width = mapped.getWidth();
+        int height = mapped.getHeight();
+        if(width == height){
+            return mapped;
+        }
+        try {
+            int length = Math.max(width, height);
+            MappedPixelFile padded = MappedPixelFile.createTemp(length, 
+                                                                length);
+            try {
+                int[] row = new int[length];
+                for(int y = 0; y < length; y++){
+                    Arrays.fill(row, -16777216);
+                    if(y < height){
+                        mapped.get((long)y * width, row, 0, width);
+                    }
+                    padded.put((long)y * length, row, 0, length);
+                }
+                return padded;
+            } catch (RuntimeException e){
+                padded.close();
+                throw e;
+            }
+        } finally {
+            raw.close();
+        }
+    }
+    
+    /**
+     * Reads text entry of the image's metadata without decoding the image.
+     * Only tEXt entries of png images are read.
+     * @param file path to picture.
+     * @param keyword keyword of the entry.
+     * @return value of the entry or null when image has no such entry.
+     */
+    public static String readText(String file, String keyword) {
+        return readTextEntries(file).get(keyword);
+    }
+    
+    /**
+     * Reads all text entries of the image's metadata without decoding the 
+     * image. Only tEXt entries of png images are read.
+     * @param file path to picture.
+     * @return values of the entries by their keywords, empty when image has
+     * none.
+     */
+    private static Map<String, String> readTextEntries(String file) {
+        String format = "javax_imageio_png_1.0";
+        Map<String, String> entries = new HashMap<>();
+        try {
+            ImageInputStream stream = ImageIO.createImageInputStream(
+                    new File(file));
+            if(stream == null){
+                return entries;
+            }
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+                if(!readers.hasNext()){
+                    return entries;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(stream, true, false);
+                    IIOMetadata metadata = reader.getImageMetadata(0);
+                    if(!Arrays.asList(metadata.getMetadataFormatNames())
+                              .contains(format)){
+                        return entries;
+                    }
+                    Node node = metadata.getAsTree(format).getFirstChild();
+                    for(; node != null; node = node.getNextSibling()){
+                        if(!"tEXt".equals(node.getNodeName())){
+                            continue;
+                        }
+                        Node entry = node.getFirstChild();
+                        for(; entry != null; entry = entry.getNextSibling()){
+                            Node key = entry.getAttributes()
+                                            .getNamedItem("keyword");
+                            Node value = entry.getAttributes()
+                                              .getNamedItem("value");
+                            if(key != null && value != null &&
+                               !entries.containsKey(key.getNodeValue())){
+                                entries.put(key.getNodeValue(), 
+                                            value.getNodeValue());
+                            }
+                        }
+                    }
+                    return entries;
+                } finally {
+                    reader.dispose();
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            return entries;
+        }
+    }
+    
     /**
      * Crops image.
      * @param src source of buffered image.
@@ -141,10 +722,14 @@ public class ImageHandler {
    }
     
     /**
-     * Snatches buffered image.
+     * Snatches buffered image, image of decoded png shares the array of 
+     * pixels.
      * @return buffered image.
      */
-    public BufferedImage getImage() {
+    public synchronized BufferedImage getImage() {
+        if(image == null && pixels != null){
+            image = new ImageCreator(pixels, height, width).createImage();
+        }
         return image;
     }
     /**
@@ -161,5 +746,66 @@ public class ImageHandler {
     public int getPaddedImageLength() {
         return paddedImageLength;
     }
+    
+    /**
+     * @return time spent decoding the image file, in nanoseconds.
+     */
+    public long getDecodeTime() {
+        return decodeTime;
+    }
+    
+    /**
+     * @return time spent copying decoded pixels into the array of pixels,
+     * in nanoseconds.
+     */
+    public long getIngestTime() {
+        return ingestTime;
+    }
+    
+    /**
+     * @param keyword keyword of the entry.
+     * @return value of the png image's text entry, read when the image was
+     * decoded, or null when image has no such entry.
+     */
+    public String getText(String keyword) {
+        return text.get(keyword);
+    }
+    
+    /**
+     * @return mode recorded in the header of raw image or 
+     * {@link RawImageFile#NO_MODE}.
+     */
+    public int getRecordedMode() {
+        return recordedMode;
+    }
+    
+    /**
+     * @return width of padded raw image before padding, 0 when image isn't
+     * padded.
+     */
+    public int getUnpaddedWidth() {
+        return unpaddedWidth;
+    }
+    
+    /**
+     * @return height of padded raw image before padding, 0 when image isn't
+     * padded.
+     */
+    public int getUnpaddedHeight() {
+        return unpaddedHeight;
+    }
+    
+    /**
+     * @return width of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * @return height of the image.
+     */
+    public int getHeight() {
+        return height;
+    }
 }
-
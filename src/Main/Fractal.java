@@ -25,18 +25,49 @@
 package Main;
 
 import java.awt.Point;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Aleksandr Šmailov
  */
 public class Fractal{
+    // Color of the padding.
+    private static final int BLACK = 0xFF000000;
+    
     private final int[] pixels;
     private final int[] newPixels;
     
     private final int length;
+    // Size of the image in pixels array, it's padded to length on the fly.
+    private final int width;
+    private final int height;
+    private final boolean inPlace;
     private int[] transf;
     private int iterations;
     private int levelReached;
+    // Whether newPixels differ from pixels and must be restored before the
+    // next run.
+    private boolean modified;
+    // Number of threads used for recursion, 1 means no parallelism.
+    private int parallelism = 1;
+    // Image parts with shorter side are processed on one thread.
+    private int granularity = 256;
+    // Whether pixels are processed in Morton layout and the array for it.
+    private boolean mortonLayout;
+    private int[] mortonPixels;
+    // Receives pixels after every level, null when nobody listens.
+    private LevelListener levelListener;
+    // Receives amount of work done, null when nobody listens.
+    private ProgressListener progressListener;
+    // Work done in current run and work of the whole run, in pixels moved.
+    private final AtomicLong workDone = new AtomicLong();
+    private long workTotal;
+    // Set from another thread to stop the recursion.
+    private volatile boolean cancelled;
 
     /**
      * @param pixels pixels of the image.
@@ -44,23 +75,70 @@ public class Fractal{
      * @param transf transformation array.
      */
     public Fractal(int[] pixels, int length, int[] transf) {
+        this(pixels, length, transf, false);
+    }
+    
+    /**
+     * @param pixels pixels of the image.
+     * @param length length of the side of the image.
+     * @param transf transformation array.
+     * @param inPlace when true pixels array itself is transformed and no copy
+     * of the image is made, every run then continues from previous result.
+     * Otherwise pixels stay untouched and result is written to one copy.
+     */
+    public Fractal(int[] pixels, int length, int[] transf, boolean inPlace) {
         this.pixels = pixels;
         this.length = length;
-        this.newPixels = this.pixels.clone();
+        this.width = length;
+        this.height = length;
+        this.inPlace = inPlace;
+        if(inPlace){
+            this.newPixels = pixels;
+        } else {
+            this.newPixels = this.pixels.clone();
+        }
         setTransf(transf);
     }
     
-    
+    /**
+     * Creates fractal for the image which isn't padded to a square. Square 
+     * is padded with black color while pixels are copied to the result, so
+     * padded copy of the image is never made, but result is the same as for
+     * padded pixels.
+     * @param pixels pixels of the image, they are not changed.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param transf transformation array.
+     * @throws IllegalArgumentException when sizes don't match pixels array or
+     * transformation array is not valid.
+     */
+    public Fractal(int[] pixels, int width, int height, int[] transf) 
+            throws IllegalArgumentException {
+        if(width <= 0 || height <= 0 || (long)width * height != pixels.length){
+            String err = "Image size doesn't match pixels array!";
+            throw new IllegalArgumentException(err);
+        }
+        this.pixels = pixels;
+        this.length = Math.max(width, height);
+        this.width = width;
+        this.height = height;
+        this.inPlace = false;
+        this.newPixels = new int[length * length];
+        copyPixels();
+        setTransf(transf);
+    }
     
     /**
      * Creates fractal and returns the amount of iterations that were executed.
      * @param iter number of iterations.
      * @return level reached.
+     * @throws CancellationException when fractal was cancelled, result is 
+     * then partly transformed.
      */
     public int createFractal(int iter){
         try{
             setIterations(iter);
-            encryptRecursion(pixels, length, 0, 0, 0);
+            runRecursion(true);
         } catch (IllegalArgumentException e){
             e.printStackTrace(System.err);
         }
@@ -71,11 +149,13 @@ public class Fractal{
      * Destroys fractal and thus decrypts data.
      * @param iter number of iterations.
      * @return level reached.
+     * @throws CancellationException when fractal was cancelled, result is 
+     * then partly transformed.
      */
     public int destroyFractal(int iter){
         try{
             setIterations(iter);
-            decryptRecursion(pixels, length, 0, 0, 0);
+            runRecursion(false);
         } catch (IllegalArgumentException e){
             e.printStackTrace(System.err);
         }
@@ -83,17 +163,44 @@ public class Fractal{
     }
     
     /**
-     * Main function of creating fractal and encrypting the image.
-     * @param pixels pixels array of current level.
-     * @param length length of the pixels array.
+     * Copies original pixels to the result array if previous run changed it,
+     * so every run starts from the original image.
+     */
+    private void restorePixels(){
+        if(!inPlace && modified){
+            copyPixels();
+        }
+        modified = true;
+    }
+    
+    /**
+     * Copies original pixels to the result array, part of the square which
+     * is outside of the image is filled with black color.
+     */
+    private void copyPixels(){
+        if(width == length && height == length){
+            System.arraycopy(pixels, 0, newPixels, 0, pixels.length);
+            return;
+        }
+        for(int i = 0; i < height; i++){
+            System.arraycopy(pixels, i * width, newPixels, i * length, width);
+            Arrays.fill(newPixels, i * length + width, (i + 1) * length, 
+                        BLACK);
+        }
+        Arrays.fill(newPixels, height * length, newPixels.length, BLACK);
+    }
+    
+    /**
+     * Main function of creating fractal and encrypting the image. Works in
+     * place on the result array, so no arrays are allocated.
+     * @param length length of the side of current image part.
      * @param x x coordinate of difference vector which let's us know where we
      * are at certain level in the whole picture.
      * @param y y coordinate of difference vector which let's us know where we
      * are at certain level in the whole picture.
      * @param level current level(iteration) in recursion.
      */
-    private void encryptRecursion(int[] pixels, int length, int x, 
-                                     int y, int level){
+    private void encryptRecursion(int length, int x, int y, int level){
         // Once we reach iterations level we return.
         if (level == iterations){
             levelReached = level;
@@ -109,281 +216,620 @@ public class Fractal{
         // Calculate half length so we can use this variable to divide current
         // image part into 4 sections.
         int halfLen = length / 2;
-        // Special ocassion when we can't divide current image part 
-        // symetrically needs to be processed, so we make a flag.
-        boolean flag = false;
-        if( length % 2 != 0){
-            flag = true;
-        }
-        // Transformation coefficient must be 1 for the image fractal.
-        float coeff = 1f;
-        // Arrays for new image divisions.
-        int[] array0, array1, array2, array3;
-        array0 = new int[halfLen * halfLen];
-        array1 = new int[halfLen * halfLen];
-        array2 = new int[halfLen * halfLen];
-        array3 = new int[halfLen * halfLen];
-        
-        for(int i = 0; i < length; i++){
-            for(int j = 0; j < length; j++){
-                // Create new point at the current location.
-                Point p = new Point(j, i);
-                // Transform at 1'st position.
-                if((i < halfLen) && (j < halfLen)){
-                    SquareDihedralGroup.transform(p, transf[0],
-                                                  coeff, halfLen);
-                    array0[p.y * halfLen + p.x] = pixels[i * length + j];
-                }
-                // Transform at 2'nd position.
-                if(!flag){
-                    if((i < halfLen) && (j >= halfLen)){
-                        p.setLocation(p.getX() - halfLen, p.getY());
-                        SquareDihedralGroup.transform(p, transf[1],
-                                                      coeff, halfLen);
-                        array1[p.y * halfLen + p.x] = pixels[i * length + j];
-                    }
-                } else {
-                    if((i < halfLen) && (j > halfLen)){
-                        
-                        p.setLocation(p.getX() - halfLen - 1, p.getY());
-                        SquareDihedralGroup.transform(p, transf[1],
-                                                      coeff, halfLen);
-                        array1[p.y * halfLen + p.x] = pixels[i * length + j];
-                    }
-                }
-                // Transform at 3'rd position.
-                if(!flag){
-                    if((i >= halfLen) && (j < halfLen)){
-                        p.setLocation(p.getX(), p.getY() - halfLen);
-                        SquareDihedralGroup.transform(p, transf[2],
-                                                      coeff, halfLen);
-                        array2[p.y * halfLen + p.x] = pixels[i * length + j];
-                    }
-                } else {
-                    if((i > halfLen) && (j < halfLen)){
-                        
-                        p.setLocation(p.getX(), p.getY() - halfLen - 1);
-                        SquareDihedralGroup.transform(p, transf[2],
-                                                      coeff, halfLen);
-                        array2[p.y * halfLen + p.x] = pixels[i * length + j];
-                    }
-                }
-                // Transform at 4'th position.
-                if(!flag){
-                    if((i >= halfLen) && (j >= halfLen)){
-                        p.setLocation(p.getX() - halfLen, p.getY() - halfLen);
-                        SquareDihedralGroup.transform(p, transf[3],
-                                                      coeff, halfLen);
-                        array3[(p.y) * halfLen + p.x] = pixels[i * length + j];
-                    }
-                } else {
-                    if((i > halfLen) && (j > halfLen)){
-                        p.setLocation(p.getX() - halfLen - 1, 
-                                      p.getY() - halfLen - 1);
-                        SquareDihedralGroup.transform(p, transf[3],
-                                                      coeff, halfLen);
-                        array3[p.y * halfLen + p.x] = pixels[i * length + j];
-                    }
-                }
-            }
-        }
-        // When flag is true, we need to add 1, so the image encrypts properly.
+        // When we can't divide current image part symetrically, middle row 
+        // and column stay in place and other partitions are shifted by 1.
         int fix = 0;
-        if (flag){
+        if (length % 2 != 0){
             fix = 1;
         }
-        // Transfer pixel data from partition 1 to real image.s
-        for(int i = 0; i < halfLen; i++){
-            for(int j = 0; j < halfLen; j++){
-                newPixels[(i + y) * this.length + (j + x)] = 
-                        array0[i * halfLen + j];
-            }
+        // Transform every partition in place.
+        transformPartitions(halfLen, x, y, fix);
+        // Progress is reported only for big parts, small ones are reported
+        // together when all of them are done.
+        if(length >= granularity){
+            reportWork((long)length * length);
         }
-        // Transfer pixel data from partition 2 to real image.
-        for(int i = 0; i < halfLen; i++){
-            for(int j = 0; j < halfLen; j++){
-                newPixels[(i + y) * this.length + (j + x +halfLen) + fix] = 
-                        array1[i * halfLen + j];
-            }
+        // Go deeper until we reach level = iterations or partitions consist 
+        // of one pixel.
+        encryptRecursion(halfLen, x, y, level);
+        encryptRecursion(halfLen, x + halfLen + fix, y, level);
+        encryptRecursion(halfLen, x, y + halfLen + fix, level);
+        encryptRecursion(halfLen, x + halfLen + fix, y + halfLen + fix, 
+                         level);
+        if(length >= granularity && halfLen < granularity){
+            reportWork(4 * partWork(halfLen, level));
         }
-        // Transfer pixel data from partition 3 to real image.
-        for(int i = 0; i < halfLen; i++){
-            for(int j = 0; j < halfLen; j++){
-                newPixels[(i + y + halfLen + fix) * this.length  + (j + x)] = 
-                        array2[i * halfLen + j];
+    }
+    
+    /**
+     * Main function of destroying fractal and decrypting the image. Levels
+     * are decrypted one by one, starting from the deepest one, by 
+     * transforming partitions of every image part of that level in place.
+     * @param length length of the side of the image part to decrypt.
+     * @param x x coordinate of difference vector which let's us know where we
+     * are at certain level in the whole picture.
+     * @param y y coordinate of difference vector which let's us know where we
+     * are at certain level in the whole picture.
+     * @param level level(iteration) of the image part.
+     */
+    private void decryptLevels(int length, int x, int y, int level){
+        int levels = calcLevelReached(length, iterations - level);
+        levelReached = level + levels;
+        for(int depth = levels - 1; depth >= 0; depth--){
+            transformLevel(length, x, y, depth);
+            reportWork((long)length * length);
+        }
+    }
+    
+    /**
+     * Does the whole image one level at a time, so pixels can be passed to
+     * {@link #levelListener} after every level.
+     * @param encrypt whether levels are done from the top down or from the 
+     * bottom up.
+     */
+    private void runLevels(boolean encrypt){
+        levelReached = calcLevelReached(length, iterations);
+        for(int i = 0; i < levelReached; i++){
+            int depth = encrypt ? i : levelReached - 1 - i;
+            transformLevel(length, 0, 0, depth);
+            reportWork((long)length * length);
+            levelListener.levelCompleted(i + 1, levelReached, newPixels);
+        }
+    }
+    
+    /**
+     * Transforms partitions of every image part of given depth in place.
+     * @param length length of the side of the image part the depth is 
+     * relative to.
+     * @param x x coordinate of the image part.
+     * @param y y coordinate of the image part.
+     * @param depth depth of image parts, 0 is the image part itself.
+     */
+    private void transformLevel(int length, int x, int y, int depth){
+        // Length of the image parts which are divided at this level.
+        int partLength = length >> depth;
+        int[] offsets = calcOffsets(length, depth);
+        int halfLen = partLength / 2;
+        // When we can't divide image part symetrically, middle row 
+        // and column stay in place and other partitions are shifted by 1.
+        int fix = partLength % 2;
+        for(int i = 0; i < offsets.length; i++){
+            for(int j = 0; j < offsets.length; j++){
+                transformPartitions(halfLen, x + offsets[j], 
+                                    y + offsets[i], fix);
             }
         }
-        // Transfer pixel data from partition 4 to real image.
-        for(int i = 0; i < halfLen; i++){
-            for(int j = 0; j < halfLen; j++){
-                newPixels[(i + y + halfLen + fix) * this.length  + 
-                          (j + x + halfLen)+ fix] = 
-                                array3[i * halfLen + j];
+    }
+    
+    /**
+     * Calculates coordinates at which image parts of given depth start, 
+     * relative to the image part they belong to. They are the same for both
+     * axes.
+     * @param length length of the side of the image part.
+     * @param depth depth of image parts, 0 is the image part itself.
+     * @return coordinates of image parts.
+     */
+    private static int[] calcOffsets(int length, int depth){
+        int[] offsets = new int[1 << depth];
+        int count = 1;
+        for(int d = 0; d < depth; d++){
+            // Every image part is divided into two along the axis, second
+            // one starts after first partition and middle line, if any.
+            int step = length / 2 + length % 2;
+            for(int k = count - 1; k >= 0; k--){
+                offsets[2 * k] = offsets[k];
+                offsets[2 * k + 1] = offsets[k] + step;
             }
+            count *= 2;
+            length /= 2;
         }
-        // Use created arrays of pixels to go deeper until we reach
-        // level = iterations or arrays consist of one pixel.
-        encryptRecursion(array0, halfLen, x, y, level);
-        encryptRecursion(array1, halfLen, x + halfLen + fix, y, level);
-        encryptRecursion(array2, halfLen, x, y + halfLen + fix, level);
-        encryptRecursion(array3, halfLen, x + halfLen + fix, 
-                         y + halfLen + fix, level);
+        return offsets;
     }
     
-    private int[] decryptRecursion(int[] pixels, int length, int x, 
-                                     int y, int level){
-        // Once we reach iterations level we return.
-        if (level == iterations){
-            levelReached = level;
-            return null;
+    /**
+     * Calculates level which recursion reaches for the image.
+     * @param length length of the side of the image.
+     * @param iterations number of iterations.
+     * @return level reached.
+     */
+    public static int calcLevelReached(int length, int iterations){
+        int level = 0;
+        while(level < iterations && length > 1){
+            length /= 2;
+            level++;
         }
-        // If we reach 1 pixel length we return.
-        if (length <= 1){
-            levelReached = level;
-            return null;
+        return level;
+    }
+    
+    /**
+     * Transforms all 4 partitions of current image part in place.
+     * @param halfLen length of the side of partition.
+     * @param x x coordinate of current image part.
+     * @param y y coordinate of current image part.
+     * @param fix 1 when partitions are separated by middle row and column,
+     * 0 otherwise.
+     */
+    private void transformPartitions(int halfLen, int x, int y, int fix){
+        checkCancelled();
+        for(int i = 0; i < 4; i++){
+            transformPartition(i, halfLen, x, y, fix);
         }
-        // Increase level.
-        level += 1;
-        // Calculate half length so we can use this variable to divide current
-        // image part into 4 sections.
-        int halfLen = length / 2;
-        // Special ocassion when we can't divide current image part 
-        // symetrically needs to be processed, so we make a flag.
-        boolean flag = false;
-        if( length % 2 != 0){
-            flag = true;
-        }
-        // Transformation coefficient must be 1 for the image fractal.
-        float coeff = 1f;
-        // Arrays for new image divisions.
-        int[] array0, array1, array2, array3;
-        array0 = new int[halfLen * halfLen];
-        array1 = new int[halfLen * halfLen];
-        array2 = new int[halfLen * halfLen];
-        array3 = new int[halfLen * halfLen];
-        
-        for(int i = 0; i < length; i++){
-            for(int j = 0; j < length; j++){
-                // Copy 1'st partition pixels.
-                if((i < halfLen) && (j < halfLen)){
-                    array0[i * halfLen + j] = pixels[i * length + j];
-                }
-                // Copy 2'nd partition pixels.
-                if(!flag){
-                    if((i < halfLen) && (j >= halfLen)){
-                        array1[i * halfLen + j - halfLen] = 
-                                pixels[i * length + j];
-                    }
-                } else {
-                    if((i < halfLen) && (j > halfLen)){
-                        array1[i * halfLen + j - halfLen - 1] = 
-                                pixels[i * length + j];
-                    }
-                }
-                // Copy 3'rd partition pixels.
-                if(!flag){
-                    if((i >= halfLen) && (j < halfLen)){
-                        array2[(i - halfLen) * halfLen + j] = 
-                                pixels[i * length + j];
-                    }
-                } else {
-                    if((i > halfLen) && (j < halfLen)){
-                        array2[(i - halfLen - 1) * halfLen + j] = 
-                                pixels[i * length + j];
-                    }
-                }
-                // Copy 4'th partition pixels.
-                if(!flag){
-                    if((i >= halfLen) && (j >= halfLen)){
-                        array3[(i - halfLen) * halfLen + j - halfLen] = 
-                                pixels[i * length + j];
-                    }
-                } else {
-                    if((i > halfLen) && (j > halfLen)){
-                        array3[(i - halfLen - 1) * halfLen + j - halfLen - 1] = 
-                                pixels[i * length + j];
-                    }
+    }
+    
+    /**
+     * Transforms one partition of current image part in place.
+     * @param partition partition number (0-3).
+     * @param halfLen length of the side of partition.
+     * @param x x coordinate of current image part.
+     * @param y y coordinate of current image part.
+     * @param fix 1 when partitions are separated by middle row and column,
+     * 0 otherwise.
+     */
+    private void transformPartition(int partition, int halfLen, int x, int y,
+                                    int fix){
+        int partX = x + (partition % 2) * (halfLen + fix);
+        int partY = y + (partition / 2) * (halfLen + fix);
+        SquareDihedralGroup.transformBlock(newPixels, this.length, 
+                                           partX, partY, halfLen, 
+                                           transf[partition]);
+    }
+    
+    /**
+     * Runs recursion on the fork/join pool when parallelism is more than 1,
+     * otherwise on the calling thread.
+     * @param encrypt true for encryption, false for decryption.
+     */
+    private void runRecursion(boolean encrypt){
+        workDone.set(0);
+        workTotal = (long)length * length * 
+                    calcLevelReached(length, iterations);
+        // Snapshots are taken between levels, so levels are done one by one
+        // on current thread.
+        if(levelListener != null){
+            restorePixels();
+            runLevels(encrypt);
+            return;
+        }
+        if(mortonLayout && MortonLayout.isSupported(length)){
+            runMorton(encrypt);
+            return;
+        }
+        restorePixels();
+        if(parallelism <= 1 || length < granularity){
+            if(encrypt){
+                encryptRecursion(length, 0, 0, 0);
+                // Image smaller than granularity isn't reported on the way.
+                if(length < granularity){
+                    reportWork(partWork(length, 0));
                 }
+            } else {
+                decryptLevels(length, 0, 0, 0);
             }
+            return;
         }
-        // When flag is true, we need to add 1, so the image decrypts properly.
-        int fix = 0;
-        if (flag){
-            fix = 1;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try{
+            pool.invoke(new RecursionTask(encrypt, length, 0, 0, 0));
+        } finally {
+            pool.shutdown();
         }
-        // Use created arrays of pixels to go deeper until we reach
-        // level = iterations or arrays consist of one pixel.
-        // Also save return values.
-        int[] returnArray0 = decryptRecursion(array0, halfLen, x, y, level);
-        if(returnArray0 != null){
-            System.arraycopy(returnArray0, 0, array0, 0, array0.length);
+        // Middle rows and columns of odd parts are not counted in the work
+        // of their partitions, so rest of the work is reported at the end.
+        reportWork(workTotal - workDone.get());
+    }
+    
+    /**
+     * Passes work done to {@link #progressListener}, if there is one.
+     * @param work number of pixels moved since the last report.
+     */
+    private void reportWork(long work){
+        if(progressListener != null){
+            long done = Math.min(workDone.addAndGet(work), workTotal);
+            progressListener.progressChanged(done, workTotal);
+        }
+    }
+    
+    /**
+     * Work of the image part and all image parts below it, in pixels moved.
+     * @param length length of the side of the image part.
+     * @param level level(iteration) of the image part.
+     * @return work of the image part.
+     */
+    private long partWork(int length, int level){
+        return (long)length * length * 
+               calcLevelReached(length, iterations - level);
+    }
+    
+    /**
+     * Encrypts or decrypts the image in Morton layout. Pixels are converted
+     * to the layout once, then every level is one pass which transforms 
+     * contiguous partitions, and pixels are converted back at the end.
+     * @param encrypt true for encryption, false for decryption.
+     */
+    private void runMorton(boolean encrypt){
+        if(mortonPixels == null){
+            mortonPixels = new int[newPixels.length];
         }
-        int[] returnArray1 = decryptRecursion(array1, halfLen, x+halfLen+fix, 
-                                              y, level);
-        if(returnArray1 != null){
-            System.arraycopy(returnArray1, 0, array1, 0, array1.length);
+        // Original pixels are read directly, so there is nothing to restore,
+        // unless they have to be padded first.
+        int[] source = pixels;
+        if(width != length || height != length){
+            copyPixels();
+            source = newPixels;
         }
-        int[] returnArray2 = decryptRecursion(array2, halfLen, x, y+halfLen+fix,
-                                              level);
-        if(returnArray2 != null){
-            System.arraycopy(returnArray2, 0, array2, 0, array2.length);
+        MortonLayout.toMorton(source, mortonPixels, length);
+        modified = true;
+        levelReached = calcLevelReached(length, iterations);
+        int[] src = mortonPixels;
+        int[] dest = newPixels;
+        for(int i = 0; i < levelReached; i++){
+            checkCancelled();
+            // Encryption goes from the top level down, decryption up.
+            int level = encrypt ? i + 1 : levelReached - i;
+            int halfLen = length >> level;
+            // Partitions of 1 pixel don't change.
+            if(halfLen < 2){
+                reportWork((long)length * length);
+                continue;
+            }
+            MortonLayout.transformLevel(src, dest, transf, halfLen);
+            reportWork((long)length * length);
+            int[] tmp = src;
+            src = dest;
+            dest = tmp;
         }
-        int[] returnArray3 = decryptRecursion(array3, halfLen, x+halfLen+fix, 
-                                              y+halfLen+fix, level);
-        if(returnArray3 != null){
-            System.arraycopy(returnArray3, 0, array3, 0, array3.length);
+        if(src == newPixels){
+            System.arraycopy(newPixels, 0, mortonPixels, 0, length * length);
         }
-        
-        // Create temporary arrays.
-        int[] tmp0, tmp1, tmp2, tmp3;
-        tmp0 = new int[halfLen * halfLen];
-        tmp1 = new int[halfLen * halfLen];
-        tmp2 = new int[halfLen * halfLen];
-        tmp3 = new int[halfLen * halfLen];
-        
-        // Transform point so we know where to write copy data from array, thus
-        // decrypting current iterations's pixels.
-        for(int i = 0; i < halfLen; i++){
-            for(int j = 0; j < halfLen; j++){
-                Point p1 = new Point(j,i);
-                SquareDihedralGroup.transform(p1, transf[0], coeff, halfLen);
-                tmp0[p1.y * halfLen + p1.x] = array0[i * halfLen + j];
-                Point p2 = new Point(j,i);
-                SquareDihedralGroup.transform(p2, transf[1], coeff, halfLen);
-                tmp1[p2.y * halfLen + p2.x] = array1[i * halfLen + j];
-                Point p3 = new Point(j,i);
-                SquareDihedralGroup.transform(p3, transf[2], coeff, halfLen);
-                tmp2[p3.y * halfLen + p3.x] = array2[i * halfLen + j];
-                Point p4 = new Point(j,i);
-                SquareDihedralGroup.transform(p4, transf[3], coeff, halfLen);
-                tmp3[p4.y * halfLen + p4.x] = array3[i * halfLen + j];
+        MortonLayout.fromMorton(mortonPixels, newPixels, length);
+    }
+    
+    /**
+     * Parallel version of {@link #encryptRecursion(int, int, int, int)} and
+     * {@link #decryptLevels(int, int, int, int)}. Partitions of one image
+     * part never overlap, so they are transformed and processed deeper in 
+     * separate tasks until image part gets smaller than granularity.
+     */
+    private class RecursionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final boolean encrypt;
+        private final int length;
+        private final int x;
+        private final int y;
+        private final int level;
+
+        RecursionTask(boolean encrypt, int length, int x, int y, int level) {
+            this.encrypt = encrypt;
+            this.length = length;
+            this.x = x;
+            this.y = y;
+            this.level = level;
+        }
+
+        @Override
+        protected void compute() {
+            // Small parts are cheaper to process on current thread.
+            if(length < granularity){
+                if(encrypt){
+                    encryptRecursion(length, x, y, level);
+                    reportWork(partWork(length, level));
+                } else {
+                    decryptLevels(length, x, y, level);
+                }
+                return;
+            }
+            if (level == iterations || length <= 1){
+                levelReached = level;
+                return;
+            }
+            int halfLen = length / 2;
+            int fix = length % 2;
+            if(encrypt){
+                transformInParallel(halfLen, fix);
+                reportWork((long)length * length);
+            }
+            invokeAll(new RecursionTask(encrypt, halfLen, x, y, level + 1),
+                      new RecursionTask(encrypt, halfLen, x + halfLen + fix, 
+                                        y, level + 1),
+                      new RecursionTask(encrypt, halfLen, x, 
+                                        y + halfLen + fix, level + 1),
+                      new RecursionTask(encrypt, halfLen, x + halfLen + fix,
+                                        y + halfLen + fix, level + 1));
+            if(!encrypt){
+                transformInParallel(halfLen, fix);
+                reportWork((long)length * length);
             }
         }
         
-        // Copy current level's decrypted data.
-        for(int i = 0; i < halfLen; i++){
-            for(int j = 0; j < halfLen; j++){
-                newPixels[(i+y) * this.length + (j + x)] = 
-                    tmp0[i * halfLen + j];
-                newPixels[(i+y) * this.length + (j + x +halfLen)+fix] = 
-                    tmp1[i * halfLen + j];
-                newPixels[(i+y+halfLen+fix) * this.length  + (j + x)] =
-                    tmp2[i * halfLen + j];
-                newPixels[(i+y+halfLen+fix) * this.length  + (j + x + halfLen)+fix] = 
-                    tmp3[i * halfLen + j];
+        /**
+         * Transforms 4 partitions of this image part in separate tasks.
+         * @param halfLen length of the side of partition.
+         * @param fix 1 when partitions are separated by middle row and 
+         * column, 0 otherwise.
+         */
+        private void transformInParallel(int halfLen, int fix){
+            invokeAll(new PartitionTask(0, halfLen, x, y, fix),
+                      new PartitionTask(1, halfLen, x, y, fix),
+                      new PartitionTask(2, halfLen, x, y, fix),
+                      new PartitionTask(3, halfLen, x, y, fix));
+        }
+    }
+    
+    /**
+     * Task which transforms one partition of an image part.
+     */
+    private class PartitionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int partition;
+        private final int halfLen;
+        private final int x;
+        private final int y;
+        private final int fix;
+
+        PartitionTask(int partition, int halfLen, int x, int y, int fix) {
+            this.partition = partition;
+            this.halfLen = halfLen;
+            this.x = x;
+            this.y = y;
+            this.fix = fix;
+        }
+
+        @Override
+        protected void compute() {
+            checkCancelled();
+            transformPartition(partition, halfLen, x, y, fix);
+        }
+    }
+    
+    /**
+     * Stops the recursion when fractal was cancelled.
+     * @throws CancellationException when fractal was cancelled.
+     */
+    private void checkCancelled() throws CancellationException {
+        if(cancelled){
+            throw new CancellationException("Fractal was cancelled!");
+        }
+    }
+    
+    /**
+     * Calculates where pixel of the original image ends up after 
+     * {@link #createFractal(int)}, without transforming the image. Takes 
+     * O(iterations) time.
+     * @param x x coordinate of the pixel in the original image.
+     * @param y y coordinate of the pixel in the original image.
+     * @param transf transformation array.
+     * @param iterations number of iterations.
+     * @param length length of the side of the (padded) image.
+     * @return location of the pixel in the encrypted image.
+     * @throws IllegalArgumentException when pixel is outside the image,
+     * iterations are not positive or transformation array is not valid.
+     */
+    public static Point encryptPoint(int x, int y, int[] transf, 
+                                     int iterations, int length)
+            throws IllegalArgumentException {
+        long coords = encryptCoords(x, y, transf, iterations, length);
+        return new Point(SquareDihedralGroup.unpackX(coords), 
+                         SquareDihedralGroup.unpackY(coords));
+    }
+    
+    /**
+     * Same as {@link #encryptPoint(int, int, int[], int, int) encryptPoint},
+     * but coordinates are packed into long, so nothing is allocated.
+     * @param x x coordinate of the pixel in the original image.
+     * @param y y coordinate of the pixel in the original image.
+     * @param transf transformation array.
+     * @param iterations number of iterations.
+     * @param length length of the side of the (padded) image.
+     * @return packed location of the pixel in the encrypted image, see 
+     * {@link SquareDihedralGroup#pack(int, int)}.
+     * @throws IllegalArgumentException when pixel is outside the image,
+     * iterations are not positive or transformation array is not valid.
+     */
+    public static long encryptCoords(int x, int y, int[] transf, 
+                                     int iterations, int length)
+            throws IllegalArgumentException {
+        checkPoint(x, y, transf, iterations, length);
+        return mapEncrypt(x, y, transf, iterations, length);
+    }
+    
+    /**
+     * Calculates where pixel of the encrypted image was in the original 
+     * image, so it's inverse of 
+     * {@link #encryptPoint(int, int, int[], int, int) encryptPoint}. Takes
+     * O(iterations) time.
+     * @param x x coordinate of the pixel in the encrypted image.
+     * @param y y coordinate of the pixel in the encrypted image.
+     * @param transf transformation array which was used for encryption.
+     * @param iterations number of iterations.
+     * @param length length of the side of the (padded) image.
+     * @return location of the pixel in the original image.
+     * @throws IllegalArgumentException when pixel is outside the image,
+     * iterations are not positive or transformation array is not valid.
+     */
+    public static Point decryptPoint(int x, int y, int[] transf, 
+                                     int iterations, int length)
+            throws IllegalArgumentException {
+        long coords = decryptCoords(x, y, transf, iterations, length);
+        return new Point(SquareDihedralGroup.unpackX(coords), 
+                         SquareDihedralGroup.unpackY(coords));
+    }
+    
+    /**
+     * Same as {@link #decryptPoint(int, int, int[], int, int) decryptPoint},
+     * but coordinates are packed into long, so nothing is allocated.
+     * @param x x coordinate of the pixel in the encrypted image.
+     * @param y y coordinate of the pixel in the encrypted image.
+     * @param transf transformation array which was used for encryption.
+     * @param iterations number of iterations.
+     * @param length length of the side of the (padded) image.
+     * @return packed location of the pixel in the original image, see 
+     * {@link SquareDihedralGroup#pack(int, int)}.
+     * @throws IllegalArgumentException when pixel is outside the image,
+     * iterations are not positive or transformation array is not valid.
+     */
+    public static long decryptCoords(int x, int y, int[] transf, 
+                                     int iterations, int length)
+            throws IllegalArgumentException {
+        checkPoint(x, y, transf, iterations, length);
+        return mapDecrypt(x, y, transf, iterations, length, 0, 0, 0);
+    }
+    
+    /**
+     * Decrypts only given rectangle of the encrypted image. Every pixel of the
+     * rectangle is taken from the place it was moved to by encryption, so the
+     * rest of the image is never touched and cost depends only on the 
+     * rectangle's area.
+     * @param pixels pixels of the encrypted (padded) image.
+     * @param length length of the side of the image.
+     * @param transf transformation array which was used for encryption.
+     * @param iterations number of iterations.
+     * @param x x coordinate of the rectangle's upper left corner.
+     * @param y y coordinate of the rectangle's upper left corner.
+     * @param width width of the rectangle.
+     * @param height height of the rectangle.
+     * @return decrypted pixels of the rectangle.
+     * @throws IllegalArgumentException when rectangle is not inside the image,
+     * iterations are not positive or transformation array is not valid.
+     */
+    public static int[] decryptRegion(int[] pixels, int length, int[] transf,
+                                      int iterations, int x, int y, 
+                                      int width, int height)
+            throws IllegalArgumentException {
+        if(width <= 0 || height <= 0 || x + width > length || 
+           y + height > length){
+            String err = "Rectangle must be inside the image!";
+            throw new IllegalArgumentException(err);
+        }
+        checkPoint(x, y, transf, iterations, length);
+        int[] region = new int[width * height];
+        for(int i = 0; i < height; i++){
+            for(int j = 0; j < width; j++){
+                long coords = mapEncrypt(x + j, y + i, transf, iterations, 
+                                         length);
+                region[i * width + j] = pixels[
+                        SquareDihedralGroup.unpackY(coords) * length + 
+                        SquareDihedralGroup.unpackX(coords)];
             }
         }
-        
-        // Copy decrypted data into one array.
-        int[] decryptedData = new int[length*length];
-        for(int i = 0; i < length; i++){
-            for(int j = 0; j < length; j++){
-                decryptedData[i * length + j] = newPixels[(i+y) * this.length + j+x];
+        return region;
+    }
+    
+    /**
+     * Encrypts coordinates of one pixel without checking arguments.
+     * @param x x coordinate of the pixel in the original image.
+     * @param y y coordinate of the pixel in the original image.
+     * @param transf transformation array.
+     * @param iterations number of iterations.
+     * @param length length of the side of the image.
+     * @return packed location of the pixel in the encrypted image.
+     */
+    static long mapEncrypt(int x, int y, int[] transf, int iterations, 
+                           int length){
+        int partX = 0;
+        int partY = 0;
+        for(int level = 0; level < iterations && length > 1; level++){
+            int halfLen = length / 2;
+            int fix = length % 2;
+            int col = findPartition(x - partX, halfLen, fix);
+            int row = findPartition(y - partY, halfLen, fix);
+            // Pixels of the middle row and column never move again.
+            if(col < 0 || row < 0){
+                break;
             }
+            // Move to the partition pixel belongs to and transform pixel 
+            // inside it.
+            partX += col * (halfLen + fix);
+            partY += row * (halfLen + fix);
+            long coords = SquareDihedralGroup.transform(
+                    x - partX, y - partY, transf[row * 2 + col], halfLen);
+            x = SquareDihedralGroup.unpackX(coords) + partX;
+            y = SquareDihedralGroup.unpackY(coords) + partY;
+            length = halfLen;
+        }
+        return SquareDihedralGroup.pack(x, y);
+    }
+    
+    /**
+     * Decrypts coordinates of one pixel without checking arguments. 
+     * Partition a pixel belongs to doesn't change at deeper levels, so we go 
+     * down to the deepest level first and undo transformations on the way 
+     * back up.
+     * @param px x coordinate of the pixel in the encrypted image.
+     * @param py y coordinate of the pixel in the encrypted image.
+     * @param transf transformation array which was used for encryption.
+     * @param iterations number of iterations.
+     * @param length length of the side of current image part.
+     * @param x x coordinate of current image part.
+     * @param y y coordinate of current image part.
+     * @param level current level(iteration) in recursion.
+     * @return packed location of the pixel in the original image.
+     */
+    static long mapDecrypt(int px, int py, int[] transf, int iterations,
+                           int length, int x, int y, int level){
+        if(level == iterations || length <= 1){
+            return SquareDihedralGroup.pack(px, py);
+        }
+        int halfLen = length / 2;
+        int fix = length % 2;
+        int col = findPartition(px - x, halfLen, fix);
+        int row = findPartition(py - y, halfLen, fix);
+        // Pixels of the middle row and column never move.
+        if(col < 0 || row < 0){
+            return SquareDihedralGroup.pack(px, py);
+        }
+        int partX = x + col * (halfLen + fix);
+        int partY = y + row * (halfLen + fix);
+        long coords = mapDecrypt(px, py, transf, iterations, halfLen, 
+                                 partX, partY, level + 1);
+        int type = SquareDihedralGroup.getInverseTransfType(
+                transf[row * 2 + col]);
+        coords = SquareDihedralGroup.transform(
+                SquareDihedralGroup.unpackX(coords) - partX,
+                SquareDihedralGroup.unpackY(coords) - partY, type, halfLen);
+        return SquareDihedralGroup.pack(
+                SquareDihedralGroup.unpackX(coords) + partX,
+                SquareDihedralGroup.unpackY(coords) + partY);
+    }
+    
+    /**
+     * Finds partition along one axis.
+     * @param coord coordinate relative to the image part.
+     * @param halfLen length of the side of partition.
+     * @param fix 1 when partitions are separated by middle line, 0 otherwise.
+     * @return 0 for first partition, 1 for second, -1 for middle line.
+     */
+    private static int findPartition(int coord, int halfLen, int fix){
+        if(coord < halfLen){
+            return 0;
+        }
+        if(coord < halfLen + fix){
+            return -1;
+        }
+        return 1;
+    }
+    
+    /**
+     * Checks arguments of pixel mapping.
+     * @param x x coordinate of the pixel.
+     * @param y y coordinate of the pixel.
+     * @param transf transformation array.
+     * @param iterations number of iterations.
+     * @param length length of the side of the image.
+     * @throws IllegalArgumentException when pixel is outside the image,
+     * iterations are not positive or transformation array is not valid.
+     */
+    private static void checkPoint(int x, int y, int[] transf, 
+                                   int iterations, int length)
+            throws IllegalArgumentException {
+        checkTransf(transf);
+        if(iterations <= 0){
+            String err = "Iterations must be positive, non zero number!";
+            throw new IllegalArgumentException(err);
+        }
+        if(x < 0 || y < 0 || x >= length || y >= length){
+            String err = "Pixel must be inside the image!";
+            throw new IllegalArgumentException(err);
         }
-        
-        // Return decrypted data.
-        return decryptedData;
     }
     
     // Getters, setters.
@@ -410,6 +856,18 @@ public class Fractal{
      */
     private void setTransf(int[] transf) 
             throws IllegalArgumentException {
+        checkTransf(transf);
+        this.transf = transf;
+    }
+    
+    /**
+     * Checks transformation array.
+     * @param transf transformation array.
+     * @throws IllegalArgumentException when array length is not equal to 4 or
+     * array elements are not in 0-7 range.
+     */
+    static void checkTransf(int[] transf) 
+            throws IllegalArgumentException {
         String err_message;
         if(transf.length == 4){
             for(int i = 0; i < transf.length; i++){
@@ -418,7 +876,6 @@ public class Fractal{
                     throw new IllegalArgumentException(err_message);
                 }
             }
-            this.transf = transf;
         } else {
             err_message = "Transformation array must be of length 4!";
             throw new IllegalArgumentException(err_message);
@@ -432,4 +889,153 @@ public class Fractal{
     public int[] getNewPixels() {
         return newPixels;
     }
+    
+    /**
+     * Sets number of threads used for recursion.
+     * @param parallelism number of threads, 1 runs recursion on the calling
+     * thread.
+     * @throws IllegalArgumentException when argument is negative or zero.
+     */
+    public void setParallelism(int parallelism) 
+            throws IllegalArgumentException {
+        if(parallelism > 0){
+            this.parallelism = parallelism;
+        } else {
+            String err = "Parallelism must be positive, non zero number!";
+            throw new IllegalArgumentException(err);
+        }
+    }
+
+    /**
+     * @return number of threads used for recursion.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets granularity threshold. Image parts with side shorter than 
+     * threshold are not split into parallel tasks any further.
+     * @param granularity length of the side of the image part.
+     * @throws IllegalArgumentException when argument is less than 2.
+     */
+    public void setGranularity(int granularity) 
+            throws IllegalArgumentException {
+        if(granularity > 1){
+            this.granularity = granularity;
+        } else {
+            String err = "Granularity must be at least 2!";
+            throw new IllegalArgumentException(err);
+        }
+    }
+
+    /**
+     * @return granularity threshold.
+     */
+    public int getGranularity() {
+        return granularity;
+    }
+    
+    /**
+     * Sets listener which receives pixels after every level. While it's set
+     * levels are done one at a time on current thread, parallelism and 
+     * Morton layout are not used.
+     * @param levelListener listener or null to remove it.
+     */
+    public void setLevelListener(LevelListener levelListener) {
+        this.levelListener = levelListener;
+    }
+    
+    /**
+     * @return listener which receives pixels after every level or null.
+     */
+    public LevelListener getLevelListener() {
+        return levelListener;
+    }
+    
+    /**
+     * Sets listener which receives amount of work done. Unlike 
+     * {@link #setLevelListener(LevelListener)} it doesn't change how 
+     * recursion is run, so it may be called from several threads.
+     * @param progressListener listener or null to remove it.
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+    
+    /**
+     * @return listener which receives amount of work done or null.
+     */
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+    
+    /**
+     * Cancels or resumes the fractal. While it's cancelled, running and new
+     * recursions stop with {@link CancellationException} as soon as they
+     * get to the next image part. Flag may be set from any thread.
+     * @param cancelled true to cancel, false to allow running again.
+     */
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+    
+    /**
+     * @return true when fractal is cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    /**
+     * @return length of the side of the (padded) image.
+     */
+    public int getLength() {
+        return length;
+    }
+    
+    /**
+     * @return true when pixels array is transformed in place.
+     */
+    public boolean isInPlace() {
+        return inPlace;
+    }
+    
+    /**
+     * Returns how many bytes besides the source pixels this fractal needs at
+     * most. Recursion itself allocates nothing, so it's one copy of the image
+     * unless working in place, plus one copy for Morton layout.
+     * @return peak extra memory in bytes.
+     */
+    public long getPeakExtraMemory() {
+        long copies = 0;
+        if(!inPlace){
+            copies++;
+        }
+        if(mortonLayout && MortonLayout.isSupported(length)){
+            copies++;
+        }
+        return copies * newPixels.length * Integer.BYTES;
+    }
+    
+    /**
+     * Sets whether pixels are processed in Morton (Z-order) layout, where 
+     * every partition is a contiguous part of the array. Layout is used only
+     * for images whose side is a power of 2 and needs one more copy of the 
+     * image. Recursion then always runs on the calling thread.
+     * @param mortonLayout true to use Morton layout.
+     */
+    public void setMortonLayout(boolean mortonLayout) {
+        this.mortonLayout = mortonLayout;
+        if(!mortonLayout){
+            mortonPixels = null;
+        }
+    }
+
+    /**
+     * @return true when pixels are processed in Morton layout.
+     */
+    public boolean isMortonLayout() {
+        return mortonLayout;
+    }
 }
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Main;
+
+import java.util.Arrays;
+
+/**
+ * Private key of an image together with the length of the side of the 
+ * padded image: transformation array and number of iterations. Different
+ * keys may give the same pixel permutation, {@link #canonical()} maps all of
+ * them to one key, so work done for one of them can be reused for others.
+ * @author Aleksandr Šmailov
+ */
+public class FractalKey {
+    private final int[] transf;
+    private final int iterations;
+    private final int length;
+    
+    /**
+     * @param transf transformation array.
+     * @param iterations number of iterations.
+     * @param length length of the side of the (padded) image.
+     * @throws IllegalArgumentException when transformation array is not 
+     * valid, iterations are not positive or length is negative.
+     */
+    public FractalKey(int[] transf, int iterations, int length)
+            throws IllegalArgumentException {
+        String err;
+        if(transf.length != 4){
+            err = "Transformation array must be of length 4!";
+            throw new IllegalArgumentException(err);
+        }
+        for(int i = 0; i < transf.length; i++){
+            if(transf[i] < 0 || transf[i] > 7){
+                err = "Transformation number must be in 0-7 range!";
+                throw new IllegalArgumentException(err);
+            }
+        }
+        if(iterations <= 0){
+            err = "Iterations must be positive, non zero number!";
+            throw new IllegalArgumentException(err);
+        }
+        if(length < 0){
+            err = "Length must not be negative!";
+            throw new IllegalArgumentException(err);
+        }
+        this.transf = transf.clone();
+        this.iterations = iterations;
+        this.length = length;
+    }
+    
+    /**
+     * Returns number of iterations which actually move pixels. Recursion 
+     * stops at single pixels, and partitions of one pixel are never moved,
+     * so levels with such partitions change nothing.
+     * @return number of effective iterations.
+     */
+    public int getEffectiveIterations(){
+        int level = 0;
+        int partLength = length;
+        while(level < iterations && partLength / 2 >= 2){
+            partLength /= 2;
+            level++;
+        }
+        return level;
+    }
+    
+    /**
+     * @return true when key doesn't move any pixel.
+     */
+    public boolean isIdentity(){
+        if(getEffectiveIterations() == 0){
+            return true;
+        }
+        for(int i = 0; i < transf.length; i++){
+            if(transf[i] != 0){
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns key which gives the same permutation. Iterations are cut to 
+     * effective iterations and every key which moves nothing becomes the key
+     * of identity transformations with one iteration.
+     * @return canonical key.
+     */
+    public FractalKey canonical(){
+        if(isIdentity()){
+            return new FractalKey(new int[4], 1, length);
+        }
+        int effective = getEffectiveIterations();
+        if(effective == iterations){
+            return this;
+        }
+        return new FractalKey(transf, effective, length);
+    }
+    
+    /**
+     * @return transformation array.
+     */
+    public int[] getTransf() {
+        return transf.clone();
+    }
+
+    /**
+     * @return number of iterations.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return length of the side of the (padded) image.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof FractalKey)){
+            return false;
+        }
+        FractalKey k = (FractalKey)o;
+        return iterations == k.iterations && length == k.length &&
+               Arrays.equals(transf, k.transf);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = Arrays.hashCode(transf);
+        hash = 31 * hash + iterations;
+        hash = 31 * hash + length;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(transf) + ", " + iterations + " iterations, " +
+               length + "x" + length;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Main;
+
+/**
+ * Way the image is divided by encryption. Mode is needed for decryption, so
+ * it's recorded in the encrypted image under {@link #KEY}.
+ * @author Aleksandr Šmailov
+ */
+public enum FractalMode {
+    /**
+     * Image is padded to a square, see {@link Fractal}.
+     */
+    SQUARE,
+    /**
+     * Image keeps its size, see {@link RectangularFractal}.
+     */
+    RECTANGULAR;
+    
+    /**
+     * Keyword under which mode is recorded in image's text metadata.
+     */
+    public static final String KEY = "FractalMode";
+    
+    /**
+     * Finds mode by its recorded name.
+     * @param name recorded name of the mode, may be null.
+     * @return mode or null when name is not a name of any mode.
+     */
+    public static FractalMode fromName(String name){
+        for(FractalMode mode : values()){
+            if(mode.name().equals(name)){
+                return mode;
+            }
+        }
+        return null;
+    }
+}
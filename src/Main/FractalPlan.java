@@ -0,0 +1,363 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Main;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Compiled form of a key. For a given transformation array, number of
+ * iterations and padded image length {@link Fractal} always produces the same
+ * pixel permutation, so the plan runs the recursion once and remembers for
+ * every destination pixel the index of the source pixel it comes from.
+ * Encryption and decryption are then a single pass over the image.
+ * @author Aleksandr Šmailov
+ */
+public class FractalPlan {
+    // Color of the padding.
+    private static final int BLACK = 0xFF000000;
+    
+    // Key of the plan, null when plan is composed of several plans.
+    private final FractalKey key;
+    private final int length;
+    // sourceIndex[i] is the index of the original pixel which ends up at
+    // position i of the encrypted image, null when no pixel moves.
+    private final int[] sourceIndex;
+
+    /**
+     * @param transf transformation array.
+     * @param iterations number of iterations.
+     * @param length length of the side of the (padded) image.
+     * @throws IllegalArgumentException when iterations are not positive or
+     * transformation array is not valid.
+     */
+    public FractalPlan(int[] transf, int iterations, int length)
+            throws IllegalArgumentException {
+        this(new FractalKey(transf, iterations, length));
+    }
+    
+    /**
+     * Builds plan for the key. Permutation is built for the canonical form
+     * of the key, so keys which move nothing need no table at all.
+     * @param key key of the plan.
+     */
+    public FractalPlan(FractalKey key){
+        this(key, indexFractal(key));
+    }
+    
+    /**
+     * Builds plan with fractal made by 
+     * {@link #indexFractal(FractalKey) indexFractal}, so it can be set up 
+     * and cancelled while the plan is being built.
+     * @param key key of the plan.
+     * @param indexFractal fractal for the key or null when key moves 
+     * nothing.
+     * @throws CancellationException when fractal was cancelled.
+     */
+    FractalPlan(FractalKey key, Fractal indexFractal) 
+            throws CancellationException {
+        this.key = key;
+        this.length = key.getLength();
+        if(indexFractal == null){
+            sourceIndex = null;
+        } else {
+            indexFractal.createFractal(key.canonical().getIterations());
+            sourceIndex = indexFractal.getNewPixels();
+        }
+    }
+    
+    /**
+     * Creates fractal which builds permutation of the key. Encrypting an 
+     * image whose pixels are their own indices gives us the source index of
+     * every destination pixel.
+     * @param key key of the plan.
+     * @return fractal working in place on the indices, null when canonical
+     * form of the key moves nothing.
+     */
+    static Fractal indexFractal(FractalKey key){
+        FractalKey canonical = key.canonical();
+        if(canonical.isIdentity()){
+            return null;
+        }
+        int length = key.getLength();
+        int[] indices = new int[length * length];
+        for(int i = 0; i < indices.length; i++){
+            indices[i] = i;
+        }
+        return new Fractal(indices, length, canonical.getTransf(), true);
+    }
+    
+    /**
+     * Creates plan which shares permutation table with another plan.
+     * @param key key of the plan, null for composed plan.
+     * @param length length of the side of the image.
+     * @param sourceIndex permutation table.
+     */
+    private FractalPlan(FractalKey key, int length, int[] sourceIndex){
+        this.key = key;
+        this.length = length;
+        this.sourceIndex = sourceIndex;
+    }
+    
+    /**
+     * Returns plan for equivalent key which reuses this plan's permutation.
+     * @param key key which gives the same permutation.
+     * @return plan for the key.
+     */
+    FractalPlan forKey(FractalKey key){
+        return new FractalPlan(key, length, sourceIndex);
+    }
+    
+    /**
+     * Composes two plans into one, so encrypting with this plan and then 
+     * with the next one takes a single pass.
+     * @param next plan which is applied after this one.
+     * @return composed plan, it has no key.
+     * @throws IllegalArgumentException when plans are for different image 
+     * sizes.
+     */
+    public FractalPlan then(FractalPlan next) 
+            throws IllegalArgumentException {
+        if(next.length != length){
+            String err = "Plans must be for images of the same size!";
+            throw new IllegalArgumentException(err);
+        }
+        if(next.sourceIndex == null){
+            return new FractalPlan(null, length, sourceIndex);
+        }
+        if(sourceIndex == null){
+            return new FractalPlan(null, length, next.sourceIndex);
+        }
+        int[] composed = new int[next.sourceIndex.length];
+        for(int i = 0; i < composed.length; i++){
+            composed[i] = sourceIndex[next.sourceIndex[i]];
+        }
+        return new FractalPlan(null, length, composed);
+    }
+    
+    /**
+     * Encrypts pixels, same as {@link Fractal#createFractal(int)}.
+     * @param pixels pixels of the padded image.
+     * @return encrypted pixels.
+     */
+    public int[] encrypt(int[] pixels){
+        int[] result = new int[length * length];
+        encrypt(pixels, result);
+        return result;
+    }
+    
+    /**
+     * Encrypts pixels into given array.
+     * @param pixels pixels of the padded image.
+     * @param result array for encrypted pixels, must not be pixels array.
+     * @throws IllegalArgumentException when arrays are of wrong size.
+     */
+    public void encrypt(int[] pixels, int[] result) 
+            throws IllegalArgumentException {
+        checkLength(pixels, result);
+        if(sourceIndex == null){
+            System.arraycopy(pixels, 0, result, 0, pixels.length);
+            return;
+        }
+        for(int i = 0; i < sourceIndex.length; i++){
+            result[i] = pixels[sourceIndex[i]];
+        }
+    }
+    
+    /**
+     * Encrypts image which isn't padded to a square. Pixels are gathered 
+     * from the image directly and ones which come from the padding are 
+     * black, so padded copy of the image is never made.
+     * @param pixels pixels of the image.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @return encrypted pixels of the padded image.
+     * @throws IllegalArgumentException when image isn't of plan's size.
+     */
+    public int[] encrypt(int[] pixels, int width, int height) 
+            throws IllegalArgumentException {
+        checkSize(pixels, width, height);
+        if(width == height){
+            return encrypt(pixels);
+        }
+        int[] result = new int[length * length];
+        for(int i = 0; i < result.length; i++){
+            int index = sourceIndex == null ? i : sourceIndex[i];
+            int x = index % length;
+            int y = index / length;
+            if(x < width && y < height){
+                result[i] = pixels[y * width + x];
+            } else {
+                result[i] = BLACK;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Decrypts pixels which were encrypted with the same key. Gives the same
+     * result as {@link Fractal#destroyFractal(int)} with inverted 
+     * transformations.
+     * @param pixels pixels of the encrypted image.
+     * @return decrypted pixels.
+     */
+    public int[] decrypt(int[] pixels){
+        int[] result = new int[length * length];
+        decrypt(pixels, result);
+        return result;
+    }
+    
+    /**
+     * Decrypts pixels into given array.
+     * @param pixels pixels of the encrypted image.
+     * @param result array for decrypted pixels, must not be pixels array.
+     * @throws IllegalArgumentException when arrays are of wrong size.
+     */
+    public void decrypt(int[] pixels, int[] result)
+            throws IllegalArgumentException {
+        checkLength(pixels, result);
+        if(sourceIndex == null){
+            System.arraycopy(pixels, 0, result, 0, pixels.length);
+            return;
+        }
+        for(int i = 0; i < sourceIndex.length; i++){
+            result[sourceIndex[i]] = pixels[i];
+        }
+    }
+    
+    /**
+     * Decrypts image which isn't padded to a square, part of the square 
+     * outside of the image is taken as black. Padded copy of the image is 
+     * never made.
+     * @param pixels pixels of the encrypted image.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @return decrypted pixels of the padded image.
+     * @throws IllegalArgumentException when image isn't of plan's size.
+     */
+    public int[] decrypt(int[] pixels, int width, int height)
+            throws IllegalArgumentException {
+        checkSize(pixels, width, height);
+        if(width == height){
+            return decrypt(pixels);
+        }
+        int[] result = new int[length * length];
+        for(int y = 0; y < length; y++){
+            for(int x = 0; x < length; x++){
+                int i = y * length + x;
+                int pixel = BLACK;
+                if(x < width && y < height){
+                    pixel = pixels[y * width + x];
+                }
+                if(sourceIndex == null){
+                    result[i] = pixel;
+                } else {
+                    result[sourceIndex[i]] = pixel;
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Checks that the image padded to a square is of plan's size.
+     * @param pixels pixels of the image.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @throws IllegalArgumentException when image isn't of plan's size.
+     */
+    private void checkSize(int[] pixels, int width, int height)
+            throws IllegalArgumentException {
+        if(width <= 0 || height <= 0 || Math.max(width, height) != length ||
+           (long)width * height != pixels.length){
+            String err = "Image must be padded to length " + length + "!";
+            throw new IllegalArgumentException(err);
+        }
+    }
+    
+    /**
+     * Checks that both arrays have as many pixels as the plan.
+     * @param pixels source pixels.
+     * @param result destination pixels.
+     * @throws IllegalArgumentException when arrays are of wrong size.
+     */
+    private void checkLength(int[] pixels, int[] result)
+            throws IllegalArgumentException {
+        int size = length * length;
+        if(pixels.length != size || result.length != size){
+            String err = "Pixels array must be of length " + size + "!";
+            throw new IllegalArgumentException(err);
+        }
+    }
+    
+    // Getters.
+
+    /**
+     * @return key of the plan, null for composed plan.
+     */
+    public FractalKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return transformation array, null for composed plan.
+     */
+    public int[] getTransf() {
+        if(key == null){
+            return null;
+        }
+        return key.getTransf();
+    }
+
+    /**
+     * @return number of iterations, 0 for composed plan.
+     */
+    public int getIterations() {
+        if(key == null){
+            return 0;
+        }
+        return key.getIterations();
+    }
+
+    /**
+     * @return length of the side of the image.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return iteration(level) reached, 0 for composed plan.
+     */
+    public int getLevelReached() {
+        return Fractal.calcLevelReached(length, getIterations());
+    }
+    
+    /**
+     * @return true when plan doesn't move any pixel.
+     */
+    public boolean isIdentity() {
+        return sourceIndex == null;
+    }
+}
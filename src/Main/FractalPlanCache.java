@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Main;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Keeps the most recently used {@link FractalPlan}s in memory, so encrypting
+ * many images of the same size with the same key builds the plan only once.
+ * Plans are stored by canonical key, so keys which give the same permutation
+ * share one plan.
+ * @author Aleksandr Šmailov
+ */
+public class FractalPlanCache {
+    private final int maxPlans;
+    private final LinkedHashMap<FractalKey, FractalPlan> plans;
+    // How fractals which build plans are run.
+    private volatile int parallelism = 1;
+    private volatile boolean mortonLayout;
+    // Receives progress of building plans, null when nobody listens.
+    private volatile ProgressListener progressListener;
+    // Fractal building a plan, so building can be cancelled from another 
+    // thread.
+    private volatile Fractal building;
+    private volatile boolean cancelled;
+    
+    /**
+     * @param maxPlans maximum number of plans kept in memory.
+     * @throws IllegalArgumentException when maxPlans is not positive.
+     */
+    public FractalPlanCache(final int maxPlans) 
+            throws IllegalArgumentException {
+        if(maxPlans <= 0){
+            String err = "Cache must be able to hold at least one plan!";
+            throw new IllegalArgumentException(err);
+        }
+        this.maxPlans = maxPlans;
+        // Access ordered map, so the eldest entry is the least recently used.
+        this.plans = new LinkedHashMap<FractalKey, FractalPlan>(16, 0.75f, 
+                                                                true){
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<FractalKey, FractalPlan> eldest){
+                return size() > FractalPlanCache.this.maxPlans;
+            }
+        };
+    }
+    
+    /**
+     * Returns cached plan for the key or builds a new one.
+     * @param transf transformation array.
+     * @param iterations number of iterations.
+     * @param length length of the side of the (padded) image.
+     * @return plan for the key.
+     * @throws CancellationException when building of the plan was 
+     * cancelled.
+     */
+    public FractalPlan getPlan(int[] transf, int iterations, int length){
+        return getPlan(new FractalKey(transf, iterations, length));
+    }
+    
+    /**
+     * Returns cached plan for the key or builds a new one.
+     * @param key key of the plan.
+     * @return plan for the key.
+     * @throws CancellationException when building of the plan was 
+     * cancelled.
+     */
+    public synchronized FractalPlan getPlan(FractalKey key)
+            throws CancellationException {
+        FractalKey canonical = key.canonical();
+        FractalPlan plan = plans.get(canonical);
+        if(plan == null){
+            plan = buildPlan(canonical);
+            plans.put(canonical, plan);
+        }
+        if(canonical.equals(key)){
+            return plan;
+        }
+        return plan.forKey(key);
+    }
+    
+    /**
+     * Returns cached plan for the key, plan is never built.
+     * @param key key of the plan.
+     * @return plan for the key or null when it's not in the cache.
+     */
+    public synchronized FractalPlan findPlan(FractalKey key){
+        FractalKey canonical = key.canonical();
+        FractalPlan plan = plans.get(canonical);
+        if(plan == null || canonical.equals(key)){
+            return plan;
+        }
+        return plan.forKey(key);
+    }
+    
+    /**
+     * Builds plan with fractal which can be cancelled.
+     * @param canonical canonical key.
+     * @return plan for the key.
+     * @throws CancellationException when building was cancelled.
+     */
+    private FractalPlan buildPlan(FractalKey canonical)
+            throws CancellationException {
+        Fractal fractal = FractalPlan.indexFractal(canonical);
+        if(fractal == null){
+            return new FractalPlan(canonical, null);
+        }
+        fractal.setParallelism(parallelism);
+        fractal.setMortonLayout(mortonLayout);
+        fractal.setProgressListener(progressListener);
+        building = fractal;
+        try{
+            // Cache may have been cancelled before fractal was created.
+            if(cancelled){
+                fractal.setCancelled(true);
+            }
+            return new FractalPlan(canonical, fractal);
+        } finally {
+            building = null;
+        }
+    }
+    
+    /**
+     * Removes all plans from the cache.
+     */
+    public synchronized void clear(){
+        plans.clear();
+    }
+    
+    /**
+     * @return number of plans in the cache.
+     */
+    public synchronized int size(){
+        return plans.size();
+    }
+
+    /**
+     * Cancels or resumes building of plans. While it's cancelled, plans 
+     * being built and new ones stop with {@link CancellationException}, 
+     * cached plans are still returned. Flag may be set from any thread.
+     * @param cancelled true to cancel, false to allow building again.
+     */
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+        Fractal f = building;
+        if(f != null){
+            f.setCancelled(cancelled);
+        }
+    }
+    
+    /**
+     * @return true when building of plans is cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    /**
+     * Sets number of threads used to build plans.
+     * @param parallelism number of threads, 1 builds plans on the calling
+     * thread.
+     * @throws IllegalArgumentException when argument is negative or zero.
+     */
+    public void setParallelism(int parallelism) 
+            throws IllegalArgumentException {
+        if(parallelism > 0){
+            this.parallelism = parallelism;
+        } else {
+            String err = "Parallelism must be positive, non zero number!";
+            throw new IllegalArgumentException(err);
+        }
+    }
+    
+    /**
+     * @return number of threads used to build plans.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    /**
+     * @param mortonLayout true to build plans in Morton layout, see 
+     * {@link Fractal#setMortonLayout(boolean)}.
+     */
+    public void setMortonLayout(boolean mortonLayout) {
+        this.mortonLayout = mortonLayout;
+    }
+    
+    /**
+     * @return true when plans are built in Morton layout.
+     */
+    public boolean isMortonLayout() {
+        return mortonLayout;
+    }
+    
+    /**
+     * @param progressListener listener which receives progress of building 
+     * plans or null to remove it. Plans found in the cache report nothing.
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+    
+    /**
+     * @return listener which receives progress of building plans or null.
+     */
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+    
+    /**
+     * @return maximum number of plans kept in memory.
+     */
+    public int getMaxPlans() {
+        return maxPlans;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Main;
+
+/**
+ * Receives pixels of the image after every level of encryption or 
+ * decryption, so progress of the recursion can be shown without running it
+ * again for every level.
+ * @author Aleksandr Šmailov
+ */
+public interface LevelListener {
+    
+    /**
+     * Called after a level is done on all image parts. Encryption goes from
+     * the top level down and decryption from the deepest level up.
+     * @param level number of levels done so far, starting from 1.
+     * @param levels number of levels which will be done in this run.
+     * @param pixels pixels of the image after the level. They keep changing
+     * after this method returns, so they have to be copied to be kept.
+     */
+    void levelCompleted(int level, int levels, int[] pixels);
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Main;
+
+/**
+ * Z-order (Morton) layout of a square image whose side is a power of 2. In
+ * this layout every partition at every level is a contiguous range of the
+ * array, and transformations of the square dihedral group become bit
+ * operations on the index: reflections flip all x or y bits, diagonal 
+ * reflections swap x and y bits.
+ * @author Aleksandr Šmailov
+ */
+public class MortonLayout {
+    // Bits of x coordinate in Morton index, y bits are the odd ones.
+    private static final int X_BITS = 0x55555555;
+    private static final int Y_BITS = 0xAAAAAAAA;
+    // Whether transformation swaps x and y, for every transformation type.
+    private static final boolean[] SWAPS = 
+            {false, true, false, true, true, false, true, false};
+    // Which coordinates transformation flips after swapping.
+    private static final int[] FLIPS = 
+            {0, X_BITS, X_BITS | Y_BITS, Y_BITS, X_BITS | Y_BITS, Y_BITS, 
+             0, X_BITS};
+    
+    /**
+     * @param length length of the side of the image.
+     * @return true when image can be stored in Morton layout.
+     */
+    public static boolean isSupported(int length){
+        return length > 0 && (length & (length - 1)) == 0 && length <= 1 << 15;
+    }
+    
+    /**
+     * Copies row by row pixels to Morton layout.
+     * @param pixels pixels row by row.
+     * @param morton array for pixels in Morton layout.
+     * @param length length of the side of the image.
+     */
+    public static void toMorton(int[] pixels, int[] morton, int length){
+        int[] spread = spreadBits(length);
+        for(int i = 0; i < length; i++){
+            int row = spread[i] << 1;
+            for(int j = 0; j < length; j++){
+                morton[row | spread[j]] = pixels[i * length + j];
+            }
+        }
+    }
+    
+    /**
+     * Copies pixels in Morton layout back to row by row layout.
+     * @param morton pixels in Morton layout.
+     * @param pixels array for pixels row by row.
+     * @param length length of the side of the image.
+     */
+    public static void fromMorton(int[] morton, int[] pixels, int length){
+        int[] spread = spreadBits(length);
+        for(int i = 0; i < length; i++){
+            int row = spread[i] << 1;
+            for(int j = 0; j < length; j++){
+                pixels[i * length + j] = morton[row | spread[j]];
+            }
+        }
+    }
+    
+    /**
+     * Transforms all partitions of one level.
+     * @param src pixels in Morton layout.
+     * @param dest array for transformed pixels, must not be src.
+     * @param transf transformation array.
+     * @param halfLen length of the side of partitions of the level.
+     */
+    public static void transformLevel(int[] src, int[] dest, int[] transf,
+                                      int halfLen){
+        int size = halfLen * halfLen;
+        int mask = size - 1;
+        for(int start = 0; start < src.length; start += size){
+            // Partition number is given by 2 bits just above the partition.
+            int type = transf[(start / size) & 3];
+            boolean swap = SWAPS[type];
+            int flip = FLIPS[type] & mask;
+            for(int i = 0; i < size; i++){
+                int index = i;
+                if(swap){
+                    index = ((index & X_BITS) << 1) | ((index >>> 1) & X_BITS);
+                }
+                dest[start + (index ^ flip)] = src[start + i];
+            }
+        }
+    }
+    
+    /**
+     * Spreads bits of every coordinate so there is a zero bit between them.
+     * @param length length of the side of the image.
+     * @return spread bits of coordinates 0..length-1.
+     */
+    private static int[] spreadBits(int length){
+        int[] spread = new int[length];
+        for(int i = 0; i < length; i++){
+            int s = i;
+            s = (s | (s << 8)) & 0x00FF00FF;
+            s = (s | (s << 4)) & 0x0F0F0F0F;
+            s = (s | (s << 2)) & 0x33333333;
+            s = (s | (s << 1)) & X_BITS;
+            spread[i] = s;
+        }
+        return spread;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Main;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Fractal which works on rectangular images without padding them to a 
+ * square. Every image part is divided into 4 partitions of unequal sizes, 
+ * left and top partitions get half of the side rounded down, so no middle
+ * row or column is left. Square partitions are transformed by any of 8 
+ * transformations, but rectangle can only be rotated by 180 degrees or 
+ * flipped, so transformations which swap axes are replaced using 
+ * {@link #RECT_TYPES}.
+ * @author Aleksandr Šmailov
+ */
+public class RectangularFractal {
+    /**
+     * Transformation used instead of given one for partitions which are not
+     * square: rotations by 90 degrees become rotation by 180 degrees, 
+     * diagonal flips become flips along the axes. Inverse transformation is
+     * replaced by inverse of the replacement, so decryption with 
+     * {@link SquareDihedralGroup#inverseTransformations(int[])} still works.
+     */
+    private static final int[] RECT_TYPES = {0, 2, 2, 2, 7, 5, 5, 7};
+    
+    private final int[] pixels;
+    private final int[] newPixels;
+    
+    private final int width;
+    private final int height;
+    private int[] transf;
+    private int iterations;
+    private int levelReached;
+    // Receives pixels after every level, null when nobody listens.
+    private LevelListener levelListener;
+    // Set from another thread to stop the recursion.
+    private volatile boolean cancelled;
+    
+    /**
+     * @param pixels pixels of the image, they are not changed.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param transf transformation array.
+     * @throws IllegalArgumentException when sizes don't match pixels array or
+     * transformation array is not valid.
+     */
+    public RectangularFractal(int[] pixels, int width, int height, 
+                              int[] transf) throws IllegalArgumentException {
+        if(width <= 0 || height <= 0 || (long)width * height != pixels.length){
+            String err = "Image size doesn't match pixels array!";
+            throw new IllegalArgumentException(err);
+        }
+        Fractal.checkTransf(transf);
+        this.pixels = pixels;
+        this.newPixels = pixels.clone();
+        this.width = width;
+        this.height = height;
+        this.transf = transf;
+    }
+    
+    /**
+     * Creates fractal and returns the amount of iterations that were executed.
+     * @param iter number of iterations.
+     * @return level reached.
+     * @throws CancellationException when fractal was cancelled.
+     */
+    public int createFractal(int iter){
+        try{
+            setIterations(iter);
+            runLevels(true);
+        } catch (IllegalArgumentException e){
+            e.printStackTrace(System.err);
+        }
+        return levelReached;
+    }
+    
+    /**
+     * Destroys fractal and thus decrypts data.
+     * @param iter number of iterations.
+     * @return level reached.
+     * @throws CancellationException when fractal was cancelled.
+     */
+    public int destroyFractal(int iter){
+        try{
+            setIterations(iter);
+            runLevels(false);
+        } catch (IllegalArgumentException e){
+            e.printStackTrace(System.err);
+        }
+        return levelReached;
+    }
+    
+    /**
+     * Copies original pixels to the result and does levels one by one.
+     * Image parts of one level don't overlap, so they can be done in any 
+     * order, but encryption goes from the top level down and decryption from
+     * the deepest level up.
+     * @param encrypt whether to encrypt or decrypt.
+     */
+    private void runLevels(boolean encrypt){
+        System.arraycopy(pixels, 0, newPixels, 0, pixels.length);
+        levelReached = calcLevelReached(width, height, iterations);
+        for(int i = 0; i < levelReached; i++){
+            int depth = encrypt ? i : levelReached - 1 - i;
+            int[] xs = calcBounds(width, depth);
+            int[] ys = calcBounds(height, depth);
+            for(int row = 0; row + 1 < ys.length; row++){
+                for(int col = 0; col + 1 < xs.length; col++){
+                    int w = xs[col + 1] - xs[col];
+                    int h = ys[row + 1] - ys[row];
+                    // Image parts which are too thin are not divided.
+                    if(w >= 2 && h >= 2){
+                        transformPartitions(xs[col], ys[row], w, h);
+                    }
+                }
+            }
+            if(levelListener != null){
+                levelListener.levelCompleted(i + 1, levelReached, newPixels);
+            }
+        }
+    }
+    
+    /**
+     * Calculates where image parts of given depth start and end along one
+     * axis. Image part i spans from bounds[i] to bounds[i + 1], some of them
+     * may be empty.
+     * @param size size of the image along the axis.
+     * @param depth depth of image parts, 0 is the whole image.
+     * @return bounds of image parts.
+     */
+    private static int[] calcBounds(int size, int depth){
+        int[] bounds = new int[(1 << depth) + 1];
+        bounds[1] = size;
+        int count = 1;
+        for(int d = 0; d < depth; d++){
+            for(int k = count; k > 0; k--){
+                int start = bounds[k - 1];
+                bounds[2 * k] = bounds[k];
+                bounds[2 * k - 1] = start + (bounds[k] - start) / 2;
+            }
+            count *= 2;
+        }
+        return bounds;
+    }
+    
+    /**
+     * Transforms all 4 partitions of the image part in place.
+     * @param x x coordinate of the image part.
+     * @param y y coordinate of the image part.
+     * @param w width of the image part.
+     * @param h height of the image part.
+     */
+    private void transformPartitions(int x, int y, int w, int h){
+        if(cancelled){
+            throw new CancellationException("Fractal was cancelled!");
+        }
+        int w0 = w / 2;
+        int h0 = h / 2;
+        transformPartition(transf[0], x, y, w0, h0);
+        transformPartition(transf[1], x + w0, y, w - w0, h0);
+        transformPartition(transf[2], x, y + h0, w0, h - h0);
+        transformPartition(transf[3], x + w0, y + h0, w - w0, h - h0);
+    }
+    
+    /**
+     * Transforms one partition in place.
+     * @param type type of transformation (0-7).
+     * @param x x coordinate of the partition.
+     * @param y y coordinate of the partition.
+     * @param w width of the partition.
+     * @param h height of the partition.
+     */
+    private void transformPartition(int type, int x, int y, int w, int h){
+        if(w == h){
+            SquareDihedralGroup.transformBlock(newPixels, width, x, y, w, 
+                                               type);
+            return;
+        }
+        switch (RECT_TYPES[type]){
+            // Rotation by 180 degrees, pixel is swapped with the one at the 
+            // same distance from the other end.
+            case 2: 
+                int size = w * h;
+                for(int k = 0; k < size / 2; k++){
+                    int l = size - 1 - k;
+                    swap((y + k / w) * width + x + k % w, 
+                         (y + l / w) * width + x + l % w);
+                }
+                break;
+            // Rows are flipped.
+            case 5:
+                for(int i = 0; i < h / 2; i++){
+                    int top = (y + i) * width + x;
+                    int bottom = (y + h - 1 - i) * width + x;
+                    for(int j = 0; j < w; j++){
+                        swap(top + j, bottom + j);
+                    }
+                }
+                break;
+            // Columns are flipped.
+            case 7:
+                for(int i = 0; i < h; i++){
+                    int row = (y + i) * width + x;
+                    for(int j = 0; j < w / 2; j++){
+                        swap(row + j, row + w - 1 - j);
+                    }
+                }
+                break;
+        }
+    }
+    
+    /**
+     * Swaps two pixels of the result.
+     * @param a index of the first pixel.
+     * @param b index of the second pixel.
+     */
+    private void swap(int a, int b){
+        int pixel = newPixels[a];
+        newPixels[a] = newPixels[b];
+        newPixels[b] = pixel;
+    }
+    
+    /**
+     * Calculates level which recursion reaches for the image, it's reached
+     * by the bottom right partitions which are the largest.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param iterations number of iterations.
+     * @return level reached.
+     */
+    public static int calcLevelReached(int width, int height, int iterations){
+        int level = 0;
+        while(level < iterations && width > 1 && height > 1){
+            width -= width / 2;
+            height -= height / 2;
+            level++;
+        }
+        return level;
+    }
+    
+    /**
+     * Set iteration amount in the recursion.
+     * @param iterations amount of iterations in the recursion.
+     * @throws IllegalArgumentException when argument is negative or zero.
+     */
+    private void setIterations(int iterations) throws IllegalArgumentException {
+        if(iterations > 0){
+            this.iterations = iterations;
+        } else {
+            String err = "Iterations must be positive, non zero number!";
+            throw new IllegalArgumentException(err);
+        }
+    }
+    
+    /**
+     * Sets listener which receives pixels after every level.
+     * @param levelListener listener or null to remove it.
+     */
+    public void setLevelListener(LevelListener levelListener) {
+        this.levelListener = levelListener;
+    }
+    
+    /**
+     * @return listener which receives pixels after every level or null.
+     */
+    public LevelListener getLevelListener() {
+        return levelListener;
+    }
+    
+    /**
+     * Cancels or resumes the fractal, see 
+     * {@link Fractal#setCancelled(boolean)}.
+     * @param cancelled true to cancel, false to allow running again.
+     */
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+    
+    /**
+     * @return true when fractal is cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    /**
+     * Get pixels of the transformed image.
+     * @return pixels of the transformed image.
+     */
+    public int[] getNewPixels() {
+        return newPixels;
+    }
+    
+    /**
+     * @return width of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * @return height of the image.
+     */
+    public int getHeight() {
+        return height;
+    }
+}
@@ -30,6 +30,12 @@ import java.awt.Point;
  * @author Aleksandr Šmailov
  */
 public class SquareDihedralGroup {
+    // Length of the side of a tile for tiled block transformations.
+    private static final int TILE = 16;
+    // Smaller blocks are transformed without tiles.
+    private static final int MIN_TILED_SIZE = 2 * TILE;
+    // Composition of every two transformations.
+    private static final int[][] CAYLEY_TABLE = buildCayleyTable();
     
     /**
      * Transforms point.
@@ -40,29 +46,312 @@ public class SquareDihedralGroup {
      */
     public static void transform(Point p, int type, float coefficient, 
                                  int vectorLength){
+        if(type < 0 || type > 7){
+            return;
+        }
+        long coords = transform(p.x, p.y, type, vectorLength);
+        if(coefficient == 1f){
+            p.x = unpackX(coords);
+            p.y = unpackY(coords);
+        } else {
+            p.setLocation(unpackX(coords) * coefficient, 
+                          unpackY(coords) * coefficient);
+        }
+    }
+    
+    /**
+     * Transforms point given by integer coordinates without allocating 
+     * anything.
+     * @param x x coordinate of the point.
+     * @param y y coordinate of the point.
+     * @param type type of transformation (0-7).
+     * @param vectorLength length of vector for a push.
+     * @return packed coordinates of transformed point, see 
+     * {@link #pack(int, int)}.
+     */
+    public static long transform(int x, int y, int type, int vectorLength){
         vectorLength -= 1;
         switch (type){
-            case 0: p.setLocation(p.getX(), p.getY());
-                    break;
-            case 1: p.setLocation(-p.getY() + vectorLength, p.getX());
-                    break;
-            case 2: p.setLocation(-p.getX() + vectorLength, -p.getY() +
-                        vectorLength);
-                    break;
-            case 3: p.setLocation(p.getY(), -p.getX() + vectorLength);
+            case 1: return pack(vectorLength - y, x);
+            case 2: return pack(vectorLength - x, vectorLength - y);
+            case 3: return pack(y, vectorLength - x);
+            case 4: return pack(vectorLength - y, vectorLength - x);
+            case 5: return pack(x, vectorLength - y);
+            case 6: return pack(y, x);
+            case 7: return pack(vectorLength - x, y);
+            default: return pack(x, y);
+        }
+    }
+    
+    /**
+     * Packs coordinates into one long, x in high and y in low 32 bits.
+     * @param x x coordinate.
+     * @param y y coordinate.
+     * @return packed coordinates.
+     */
+    public static long pack(int x, int y){
+        return ((long)x << 32) | (y & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * @param coords packed coordinates.
+     * @return x coordinate.
+     */
+    public static int unpackX(long coords){
+        return (int)(coords >> 32);
+    }
+    
+    /**
+     * @param coords packed coordinates.
+     * @return y coordinate.
+     */
+    public static int unpackY(long coords){
+        return (int)coords;
+    }
+    
+    /**
+     * Transforms square block of pixels in place. Pixel at block's (x, y) 
+     * is moved to the location 
+     * {@link #transform(Point, int, float, int) transform} gives for that 
+     * point, no additional arrays are allocated. Transformations which swap
+     * x and y walk columns of the image, so for bigger blocks their loops 
+     * go tile by tile and all rows touched by one tile stay in cache. Other
+     * transformations already walk rows. All kernels are plain loops, the 
+     * tiling only changes the order pixels are visited in.
+     * @param pixels pixels of the image.
+     * @param stride length of one row of the image.
+     * @param x x coordinate of the block's upper left corner.
+     * @param y y coordinate of the block's upper left corner.
+     * @param size length of the side of the block.
+     * @param type type of transformation (0-7).
+     */
+    public static void transformBlock(int[] pixels, int stride, int x, int y,
+                                      int size, int type){
+        if(size < MIN_TILED_SIZE){
+            transformPixels(pixels, stride, x, y, size, type);
+            return;
+        }
+        switch (type){
+            case 1: rotateTiled(pixels, stride, x, y, size, true);
                 break;
-            case 4: p.setLocation(-p.getY() + vectorLength, -p.getX() + 
-                        vectorLength);
+            case 3: rotateTiled(pixels, stride, x, y, size, false);
                 break;
-            case 5: p.setLocation(p.getX(), -p.getY() + vectorLength);
+            case 4: antiTransposeTiled(pixels, stride, x, y, size);
                 break;
-            case 6: p.setLocation(p.getY(), p.getX());
+            case 6: transposeTiled(pixels, stride, x, y, size);
                 break;
-            case 7: p.setLocation(-p.getX() + vectorLength, p.getY());
+            default: transformPixels(pixels, stride, x, y, size, type);
                 break;
         }
-        if(type >= 0 && type < 8){
-            p.setLocation(p.getX() * coefficient, p.getY() * coefficient);
+    }
+    
+    /**
+     * Rotates square block in place tile by tile. Each pixel of a tile in 
+     * the upper left quarter is part of a 4 element cycle.
+     * @param pixels pixels of the image.
+     * @param stride length of one row of the image.
+     * @param x x coordinate of the block's upper left corner.
+     * @param y y coordinate of the block's upper left corner.
+     * @param size length of the side of the block.
+     * @param first true for transformation 1, false for transformation 3.
+     */
+    private static void rotateTiled(int[] pixels, int stride, int x, int y,
+                                    int size, boolean first){
+        int last = size - 1;
+        int offset = y * stride + x;
+        int rows = size / 2;
+        int cols = (size + 1) / 2;
+        int tmp;
+        for(int ti = 0; ti < rows; ti += TILE){
+            int rowEnd = Math.min(ti + TILE, rows);
+            for(int tj = 0; tj < cols; tj += TILE){
+                int colEnd = Math.min(tj + TILE, cols);
+                for(int i = ti; i < rowEnd; i++){
+                    for(int j = tj; j < colEnd; j++){
+                        int p0 = offset + i * stride + j;
+                        int p1 = offset + j * stride + last - i;
+                        int p2 = offset + (last - i) * stride + last - j;
+                        int p3 = offset + (last - j) * stride + i;
+                        if(first){
+                            tmp = pixels[p3];
+                            pixels[p3] = pixels[p2];
+                            pixels[p2] = pixels[p1];
+                            pixels[p1] = pixels[p0];
+                            pixels[p0] = tmp;
+                        } else {
+                            tmp = pixels[p0];
+                            pixels[p0] = pixels[p1];
+                            pixels[p1] = pixels[p2];
+                            pixels[p2] = pixels[p3];
+                            pixels[p3] = tmp;
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reflects square block over its diagonal in place tile by tile.
+     * @param pixels pixels of the image.
+     * @param stride length of one row of the image.
+     * @param x x coordinate of the block's upper left corner.
+     * @param y y coordinate of the block's upper left corner.
+     * @param size length of the side of the block.
+     */
+    private static void transposeTiled(int[] pixels, int stride, int x, 
+                                       int y, int size){
+        int offset = y * stride + x;
+        int tmp;
+        for(int ti = 0; ti < size; ti += TILE){
+            int rowEnd = Math.min(ti + TILE, size);
+            for(int tj = ti; tj < size; tj += TILE){
+                int colEnd = Math.min(tj + TILE, size);
+                for(int i = ti; i < rowEnd; i++){
+                    // Only pixels above diagonal are swapped.
+                    for(int j = Math.max(tj, i + 1); j < colEnd; j++){
+                        int p0 = offset + i * stride + j;
+                        int p1 = offset + j * stride + i;
+                        tmp = pixels[p0];
+                        pixels[p0] = pixels[p1];
+                        pixels[p1] = tmp;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reflects square block over its anti-diagonal in place tile by tile.
+     * @param pixels pixels of the image.
+     * @param stride length of one row of the image.
+     * @param x x coordinate of the block's upper left corner.
+     * @param y y coordinate of the block's upper left corner.
+     * @param size length of the side of the block.
+     */
+    private static void antiTransposeTiled(int[] pixels, int stride, int x, 
+                                           int y, int size){
+        int last = size - 1;
+        int offset = y * stride + x;
+        int tmp;
+        for(int ti = 0; ti < size; ti += TILE){
+            int rowEnd = Math.min(ti + TILE, size);
+            for(int tj = 0; tj < last - ti; tj += TILE){
+                for(int i = ti; i < rowEnd; i++){
+                    // Only pixels above anti-diagonal are swapped.
+                    int colEnd = Math.min(tj + TILE, last - i);
+                    for(int j = tj; j < colEnd; j++){
+                        int p0 = offset + i * stride + j;
+                        int p1 = offset + (last - j) * stride + last - i;
+                        tmp = pixels[p0];
+                        pixels[p0] = pixels[p1];
+                        pixels[p1] = tmp;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Transforms square block of pixels in place pixel by pixel.
+     * @param pixels pixels of the image.
+     * @param stride length of one row of the image.
+     * @param x x coordinate of the block's upper left corner.
+     * @param y y coordinate of the block's upper left corner.
+     * @param size length of the side of the block.
+     * @param type type of transformation (0-7).
+     */
+    private static void transformPixels(int[] pixels, int stride, int x, 
+                                        int y, int size, int type){
+        int last = size - 1;
+        int offset = y * stride + x;
+        int tmp;
+        switch (type){
+            case 1: // Rotation, every pixel is part of a 4 element cycle.
+                for(int i = 0; i < size / 2; i++){
+                    for(int j = 0; j < (size + 1) / 2; j++){
+                        int p0 = offset + i * stride + j;
+                        int p1 = offset + j * stride + last - i;
+                        int p2 = offset + (last - i) * stride + last - j;
+                        int p3 = offset + (last - j) * stride + i;
+                        tmp = pixels[p3];
+                        pixels[p3] = pixels[p2];
+                        pixels[p2] = pixels[p1];
+                        pixels[p1] = pixels[p0];
+                        pixels[p0] = tmp;
+                    }
+                }
+                break;
+            case 2: // Rotation by half turn, reverse rows in reverse order.
+                for(int i = 0; i < (size + 1) / 2; i++){
+                    int row = offset + i * stride;
+                    int mirror = offset + (last - i) * stride;
+                    int end = (i == last - i) ? size / 2 : size;
+                    for(int j = 0; j < end; j++){
+                        tmp = pixels[row + j];
+                        pixels[row + j] = pixels[mirror + last - j];
+                        pixels[mirror + last - j] = tmp;
+                    }
+                }
+                break;
+            case 3: // Rotation in the other direction.
+                for(int i = 0; i < size / 2; i++){
+                    for(int j = 0; j < (size + 1) / 2; j++){
+                        int p0 = offset + i * stride + j;
+                        int p1 = offset + j * stride + last - i;
+                        int p2 = offset + (last - i) * stride + last - j;
+                        int p3 = offset + (last - j) * stride + i;
+                        tmp = pixels[p0];
+                        pixels[p0] = pixels[p1];
+                        pixels[p1] = pixels[p2];
+                        pixels[p2] = pixels[p3];
+                        pixels[p3] = tmp;
+                    }
+                }
+                break;
+            case 4: // Reflection over anti-diagonal.
+                for(int i = 0; i < size; i++){
+                    for(int j = 0; j < last - i; j++){
+                        int p0 = offset + i * stride + j;
+                        int p1 = offset + (last - j) * stride + last - i;
+                        tmp = pixels[p0];
+                        pixels[p0] = pixels[p1];
+                        pixels[p1] = tmp;
+                    }
+                }
+                break;
+            case 5: // Swap rows.
+                for(int i = 0; i < size / 2; i++){
+                    int row = offset + i * stride;
+                    int mirror = offset + (last - i) * stride;
+                    for(int j = 0; j < size; j++){
+                        tmp = pixels[row + j];
+                        pixels[row + j] = pixels[mirror + j];
+                        pixels[mirror + j] = tmp;
+                    }
+                }
+                break;
+            case 6: // Reflection over diagonal.
+                for(int i = 0; i < size; i++){
+                    for(int j = i + 1; j < size; j++){
+                        int p0 = offset + i * stride + j;
+                        int p1 = offset + j * stride + i;
+                        tmp = pixels[p0];
+                        pixels[p0] = pixels[p1];
+                        pixels[p1] = tmp;
+                    }
+                }
+                break;
+            case 7: // Reverse every row.
+                for(int i = 0; i < size; i++){
+                    int row = offset + i * stride;
+                    for(int j = 0; j < size / 2; j++){
+                        tmp = pixels[row + j];
+                        pixels[row + j] = pixels[row + last - j];
+                        pixels[row + last - j] = tmp;
+                    }
+                }
+                break;
         }
     }
     
@@ -99,10 +388,92 @@ public class SquareDihedralGroup {
      * @return inverse transformations.
      */
     public static int[] inverseTransformations(int[] transf){
-        int[] t = new int[4];
+        int[] t = new int[transf.length];
         for (int i = 0; i < transf.length; i++){
             t[i] = getInverseTransfType(transf[i]);
         }
         return t;
     }
+    
+    /**
+     * Returns transformation which is the same as applying first 
+     * transformation and then the second one.
+     * @param first type of transformation applied first (0-7).
+     * @param second type of transformation applied second (0-7).
+     * @return type of composed transformation.
+     */
+    public static int compose(int first, int second){
+        return CAYLEY_TABLE[first][second];
+    }
+    
+    /**
+     * Composes transformation arrays element by element. With one iteration
+     * encrypting with first array and then with second one is the same as 
+     * encrypting once with the result. Deeper levels move partitions which
+     * were already transformed, so it doesn't hold for more iterations, use 
+     * {@link FractalPlan#then(FractalPlan)} there.
+     * @param first transformations applied first.
+     * @param second transformations applied second.
+     * @return composed transformations.
+     * @throws IllegalArgumentException when arrays are of different length.
+     */
+    public static int[] composeTransformations(int[] first, int[] second)
+            throws IllegalArgumentException {
+        if(first.length != second.length){
+            String err = "Transformation arrays must be of the same length!";
+            throw new IllegalArgumentException(err);
+        }
+        int[] t = new int[first.length];
+        for (int i = 0; i < first.length; i++){
+            t[i] = compose(first[i], second[i]);
+        }
+        return t;
+    }
+    
+    /**
+     * Returns composition table of the group, element at [i][j] is type of
+     * transformation equal to applying i and then j.
+     * @return 8x8 composition table.
+     */
+    public static int[][] getCayleyTable(){
+        int[][] table = new int[8][];
+        for (int i = 0; i < 8; i++){
+            table[i] = CAYLEY_TABLE[i].clone();
+        }
+        return table;
+    }
+    
+    /**
+     * Builds composition table by comparing where transformations move 
+     * pixels of a 3x3 square. No two transformations move all of them the 
+     * same way.
+     * @return 8x8 composition table.
+     */
+    private static int[][] buildCayleyTable(){
+        int size = 3;
+        // Where every transformation moves every pixel.
+        int[][] moves = new int[8][size * size];
+        for (int type = 0; type < 8; type++){
+            for (int i = 0; i < size * size; i++){
+                long coords = transform(i % size, i / size, type, size);
+                moves[type][i] = unpackY(coords) * size + unpackX(coords);
+            }
+        }
+        int[][] table = new int[8][8];
+        for (int first = 0; first < 8; first++){
+            for (int second = 0; second < 8; second++){
+                for (int type = 0; type < 8; type++){
+                    boolean same = true;
+                    for (int i = 0; i < size * size && same; i++){
+                        same = moves[type][i] == moves[second][moves[first][i]];
+                    }
+                    if(same){
+                        table[first][second] = type;
+                        break;
+                    }
+                }
+            }
+        }
+        return table;
+    }
 }
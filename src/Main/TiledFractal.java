@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Aleksandr Šmailov.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Main;
+
+import FileProcessing.MappedPixelFile;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Encrypts and decrypts images which don't fit into the heap. Both source 
+ * and result live in memory mapped files, result is produced tile by tile 
+ * and every pixel of a tile is fetched from the source using 
+ * {@link Fractal#encryptCoords(int, int, int[], int, int) encryptCoords} or
+ * {@link Fractal#decryptCoords(int, int, int[], int, int) decryptCoords}, 
+ * so heap use is bounded by one tile.
+ * @author Aleksandr Šmailov
+ */
+public class TiledFractal {
+    private final int[] transf;
+    private final int tileLength;
+    // Set from another thread to stop filling tiles.
+    private volatile boolean cancelled;
+    
+    /**
+     * @param transf transformation array which is used for encryption.
+     * @param tileBudget maximum number of pixels in one tile.
+     * @throws IllegalArgumentException when tile budget is not positive or
+     * transformation array is not valid.
+     */
+    public TiledFractal(int[] transf, int tileBudget) 
+            throws IllegalArgumentException {
+        if(tileBudget <= 0){
+            String err = "Tile budget must be positive, non zero number!";
+            throw new IllegalArgumentException(err);
+        }
+        // Tiles use unchecked mapping, so bad key must fail before any tile
+        // is written.
+        Fractal.checkTransf(transf);
+        this.transf = transf.clone();
+        this.tileLength = Math.max(1, (int)Math.sqrt(tileBudget));
+    }
+    
+    /**
+     * Encrypts the image.
+     * @param source padded image.
+     * @param result file for encrypted image of the same size.
+     * @param iter number of iterations.
+     * @return level reached.
+     * @throws CancellationException when fractal was cancelled, result is 
+     * then partly written.
+     */
+    public int encrypt(MappedPixelFile source, MappedPixelFile result, 
+                       int iter){
+        return transformTiles(source, result, iter, true);
+    }
+    
+    /**
+     * Decrypts the image.
+     * @param source encrypted image.
+     * @param result file for decrypted image of the same size.
+     * @param iter number of iterations.
+     * @return level reached.
+     * @throws CancellationException when fractal was cancelled, result is 
+     * then partly written.
+     */
+    public int decrypt(MappedPixelFile source, MappedPixelFile result, 
+                       int iter){
+        return transformTiles(source, result, iter, false);
+    }
+    
+    /**
+     * Fills result tile by tile.
+     * @param source source image.
+     * @param result file for the result.
+     * @param iter number of iterations.
+     * @param encrypt true for encryption, false for decryption.
+     * @return level reached.
+     * @throws IllegalArgumentException when images are not squares of the 
+     * same size or iterations are not positive.
+     * @throws CancellationException when fractal was cancelled.
+     */
+    private int transformTiles(MappedPixelFile source, MappedPixelFile result,
+                               int iter, boolean encrypt)
+            throws IllegalArgumentException, CancellationException {
+        if(iter <= 0){
+            String err = "Iterations must be positive, non zero number!";
+            throw new IllegalArgumentException(err);
+        }
+        int length = source.getWidth();
+        if(source.getHeight() != length || result.getWidth() != length ||
+           result.getHeight() != length){
+            String err = "Images must be squares of the same size!";
+            throw new IllegalArgumentException(err);
+        }
+        int[] tile = new int[Math.min(tileLength, length) * 
+                             Math.min(tileLength, length)];
+        for(int tileY = 0; tileY < length; tileY += tileLength){
+            for(int tileX = 0; tileX < length; tileX += tileLength){
+                if(cancelled){
+                    throw new CancellationException();
+                }
+                int tileWidth = Math.min(tileLength, length - tileX);
+                int tileHeight = Math.min(tileLength, length - tileY);
+                for(int i = 0; i < tileHeight; i++){
+                    for(int j = 0; j < tileWidth; j++){
+                        // Find where result pixel comes from.
+                        long coords;
+                        if(encrypt){
+                            coords = Fractal.mapDecrypt(tileX + j, tileY + i,
+                                                        transf, iter, length,
+                                                        0, 0, 0);
+                        } else {
+                            coords = Fractal.mapEncrypt(tileX + j, tileY + i,
+                                                        transf, iter, length);
+                        }
+                        tile[i * tileWidth + j] = source.get(
+                                (long)SquareDihedralGroup.unpackY(coords) * 
+                                length + SquareDihedralGroup.unpackX(coords));
+                    }
+                }
+                for(int i = 0; i < tileHeight; i++){
+                    result.put((long)(tileY + i) * length + tileX, tile, 
+                               i * tileWidth, tileWidth);
+                }
+            }
+        }
+        return Fractal.calcLevelReached(length, iter);
+    }
+
+    /**
+     * Cancels or resumes the fractal. While it's cancelled, running and new
+     * encryptions and decryptions stop with {@link CancellationException} 
+     * before the next tile. Flag may be set from any thread.
+     * @param cancelled true to cancel, false to allow running again.
+     */
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+    
+    /**
+     * @return true when fractal is cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    /**
+     * @return length of the side of one tile.
+     */
+    public int getTileLength() {
+        return tileLength;
+    }
+}